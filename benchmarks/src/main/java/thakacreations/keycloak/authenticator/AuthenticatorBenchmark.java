@@ -0,0 +1,86 @@
+package thakacreations.keycloak.authenticator;
+
+import thakacreations.keycloak.authenticator.gateway.SmsServiceRegistry;
+import thakacreations.keycloak.authenticator.gateway.SnsClients;
+import thakacreations.keycloak.authenticator.store.InMemoryOtpStore;
+import thakacreations.keycloak.authenticator.store.InMemoryOtpStoreProviderFactory;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * authenticate() and the OTP validation of the Direct Grant flow in simulation mode,
+ * i.e. without any SMS gateway involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthenticatorBenchmark {
+
+	private static final AtomicInteger USERS = new AtomicInteger();
+
+	SmsAuthenticator authenticator;
+	InMemoryOtpStore store;
+	AuthenticatorConfigModel config;
+
+	@Setup
+	public void setUp() {
+		authenticator = new SmsAuthenticator(InMemoryOtpStoreProviderFactory.PROVIDER_ID,
+			new SmsServiceRegistry(null, new SnsClients(Stubs.defaultConfig(), null), null, null, null), null, null);
+		store = new InMemoryOtpStore();
+		config = StubFlowContext.simulationConfig();
+	}
+
+	@State(Scope.Thread)
+	public static class Flow {
+		String username;
+		StubFlowContext flow;
+
+		@Setup
+		public void setUp(AuthenticatorBenchmark benchmark) {
+			username = "user-" + USERS.incrementAndGet();
+			flow = new StubFlowContext("benchmark", username, true, null,
+				benchmark.config, benchmark.store);
+			// issue one code so that the validation paths find an entry
+			benchmark.authenticator.authenticate(flow.context);
+		}
+	}
+
+	@Benchmark
+	public Object issueOtp(Flow flow) {
+		flow.flow.formParameters.remove(SmsConstants.OTP);
+		authenticator.authenticate(flow.flow.context);
+		return flow.flow.outcome;
+	}
+
+	@Benchmark
+	public Object validateInvalidOtp(Flow flow) {
+		flow.flow.formParameters.putSingle(SmsConstants.OTP, "invalid");
+		authenticator.authenticate(flow.flow.context);
+		return flow.flow.outcome;
+	}
+
+	@Benchmark
+	public Object issueAndValidateOtp(Flow flow) {
+		flow.flow.formParameters.remove(SmsConstants.OTP);
+		authenticator.authenticate(flow.flow.context);
+		flow.flow.formParameters.putSingle(SmsConstants.OTP, store.get("benchmark", flow.username).getCode());
+		authenticator.authenticate(flow.flow.context);
+		return flow.flow.outcome;
+	}
+
+}
@@ -0,0 +1,57 @@
+package thakacreations.keycloak.authenticator;
+
+import thakacreations.keycloak.authenticator.gateway.SmsServiceRegistry;
+import thakacreations.keycloak.authenticator.gateway.SnsClients;
+import thakacreations.keycloak.authenticator.store.InMemoryOtpStore;
+import thakacreations.keycloak.authenticator.store.InMemoryOtpStoreProviderFactory;
+import jakarta.ws.rs.core.MediaType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * isDirectGrantFlow() for the token endpoint and for browser requests with different Accept headers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DirectGrantDetectionBenchmark {
+
+	@Param({"token", "browser-json", "browser-html", "browser-none"})
+	String request;
+
+	SmsAuthenticator authenticator;
+	StubFlowContext flow;
+
+	@Setup
+	public void setUp() {
+		authenticator = new SmsAuthenticator(InMemoryOtpStoreProviderFactory.PROVIDER_ID,
+			new SmsServiceRegistry(null, new SnsClients(Stubs.defaultConfig(), null), null, null, null), null, null);
+		String accept = switch (request) {
+			case "browser-json" -> MediaType.APPLICATION_JSON;
+			case "browser-html" -> "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+			default -> null;
+		};
+		flow = new StubFlowContext("benchmark", "user", "token".equals(request), accept,
+			StubFlowContext.simulationConfig(), new InMemoryOtpStore());
+	}
+
+	@Benchmark
+	public boolean isDirectGrantFlow() {
+		return authenticator.isDirectGrantFlow(flow.context);
+	}
+
+}
@@ -0,0 +1,47 @@
+package thakacreations.keycloak.authenticator;
+
+import org.keycloak.common.util.SecretGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OtpCodeGenerator against Keycloak's SecretGenerator, run with -t to see the contention on the shared SecureRandom
+ * and with -prof gc for the allocations per code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OtpCodeGeneratorBenchmark {
+
+	@Param({"6", "8"})
+	int length;
+
+	@Benchmark
+	public String secretGenerator() {
+		return SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS);
+	}
+
+	@Benchmark
+	public long generate() {
+		return OtpCodeGenerator.generate(length);
+	}
+
+	@Benchmark
+	public String generateAndFormat() {
+		return OtpCodeGenerator.format(OtpCodeGenerator.generate(length), length);
+	}
+
+}
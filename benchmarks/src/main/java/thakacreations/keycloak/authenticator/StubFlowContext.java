@@ -0,0 +1,97 @@
+package thakacreations.keycloak.authenticator;
+
+import thakacreations.keycloak.authenticator.store.OtpStoreProvider;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.core.UriInfo;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Stubbed flow context of a single realm user, as seen by the authenticator on the token endpoint
+ * (Direct Grant) or on the login action endpoint (browser flow).
+ */
+class StubFlowContext {
+
+	final MultivaluedMap<String, String> formParameters = new MultivaluedHashMap<>();
+	final AuthenticationFlowContext context;
+	// the response of the last failure or challenge, the flow error alone if there is none, null after success()
+	Object outcome;
+
+	StubFlowContext(String realmId, String username, boolean directGrant, String acceptHeader,
+					AuthenticatorConfigModel config, OtpStoreProvider store) {
+		URI requestUri = URI.create(directGrant
+			? "https://keycloak.example.com/realms/" + realmId + "/protocol/openid-connect/token"
+			: "https://keycloak.example.com/realms/" + realmId + "/login-actions/authenticate");
+
+		RealmModel realm = Stubs.stub(RealmModel.class, Map.of("getId", realmId, "getName", realmId));
+		UserModel user = Stubs.stub(UserModel.class, Map.of(
+			"getUsername", username,
+			"getEmail", username + "@example.com",
+			"getFirstAttribute", "+4917012345678"));
+		KeycloakContext keycloakContext = Stubs.stub(KeycloakContext.class, Map.of(
+			"getRealm", realm,
+			"resolveLocale", Locale.ENGLISH));
+		KeycloakSession session = Stubs.stub(KeycloakSession.class, Map.of(
+			"getContext", keycloakContext,
+			"getProvider", store));
+		Map<String, Object> headerAnswers = new HashMap<>();
+		if (acceptHeader != null) {
+			headerAnswers.put("getHeaderString", acceptHeader);
+		}
+		HttpHeaders headers = Stubs.stub(HttpHeaders.class, headerAnswers);
+		HttpRequest request = Stubs.stub(HttpRequest.class, Map.of(
+			"getDecodedFormParameters", formParameters,
+			"getHttpHeaders", headers));
+		UriInfo uriInfo = Stubs.stub(UriInfo.class, Map.of("getRequestUri", requestUri));
+		AuthenticationExecutionModel execution = new AuthenticationExecutionModel();
+		execution.setRequirement(AuthenticationExecutionModel.Requirement.REQUIRED);
+		LoginFormsProvider form = Stubs.stub(LoginFormsProvider.class, Map.of());
+
+		Map<String, Object> contextAnswers = new HashMap<>();
+		contextAnswers.put("getRealm", realm);
+		contextAnswers.put("getUser", user);
+		contextAnswers.put("getSession", session);
+		contextAnswers.put("getHttpRequest", request);
+		contextAnswers.put("getUriInfo", uriInfo);
+		contextAnswers.put("getExecution", execution);
+		contextAnswers.put("form", form);
+		if (config != null) {
+			contextAnswers.put("getAuthenticatorConfig", config);
+		}
+		Function<Object[], Object> failure = args -> outcome = args.length > 1 ? args[1] : args[0];
+		contextAnswers.put("failure", failure);
+		contextAnswers.put("failureChallenge", failure);
+		contextAnswers.put("challenge", (Function<Object[], Object>) args -> outcome = args[0]);
+		contextAnswers.put("success", (Function<Object[], Object>) args -> outcome = null);
+		context = Stubs.stub(AuthenticationFlowContext.class, contextAnswers);
+	}
+
+	static AuthenticatorConfigModel simulationConfig() {
+		AuthenticatorConfigModel config = new AuthenticatorConfigModel();
+		config.setId("benchmark-config");
+		config.setAlias("benchmark");
+		config.setConfig(new HashMap<>(Map.of(
+			SmsConstants.CODE_LENGTH, "6",
+			SmsConstants.CODE_TTL, "300",
+			SmsConstants.SIMULATION_MODE, "true",
+			// the invalid code benchmark would only measure the locked code otherwise
+			SmsConstants.MAX_ATTEMPTS, "0")));
+		return config;
+	}
+
+}
@@ -0,0 +1,67 @@
+package thakacreations.keycloak.authenticator;
+
+import org.keycloak.Config;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Minimal dynamic-proxy stubs for the Keycloak interfaces used by the authenticator.
+ * Methods are answered by name from the given map, either with a fixed value or a function of the arguments.
+ * Unknown methods return the stub itself for fluent builders, otherwise null, false or zero.
+ */
+final class Stubs {
+
+	private Stubs() {
+	}
+
+	/**
+	 * SPI configuration answering every option with its default value.
+	 */
+	static Config.Scope defaultConfig() {
+		Function<Object[], Object> defaultValue = args -> args.length > 1 ? args[1] : null;
+		return stub(Config.Scope.class, Map.of(
+			"get", defaultValue,
+			"getInt", defaultValue,
+			"getLong", defaultValue,
+			"getBoolean", defaultValue));
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T stub(Class<T> type, Map<String, Object> answers) {
+		return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+			Object answer = answers.get(method.getName());
+			if (answer instanceof Function<?, ?> function) {
+				return ((Function<Object[], Object>) function).apply(args);
+			}
+			if (answer != null) {
+				return answer;
+			}
+			switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return type.getSimpleName() + " stub";
+				default:
+			}
+			Class<?> returnType = method.getReturnType();
+			if (returnType.isInstance(proxy)) {
+				return proxy;
+			}
+			if (returnType == boolean.class) {
+				return false;
+			}
+			if (returnType == int.class) {
+				return 0;
+			}
+			if (returnType == long.class) {
+				return 0L;
+			}
+			return null;
+		});
+	}
+
+}
@@ -0,0 +1,73 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.SmsConstants;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the gateway layer around a no-op SmsService: registry lookup,
+ * synchronous send and the asynchronous dispatch round trip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GatewayBenchmark {
+
+	SmsServiceRegistry registry;
+	AuthenticatorConfigModel config;
+	SmsDispatcher dispatcher;
+	SmsService noop;
+	SmsService async;
+
+	@Setup
+	public void setUp(Blackhole blackhole) {
+		config = new AuthenticatorConfigModel();
+		config.setId("benchmark-config");
+		config.setConfig(new HashMap<>(Map.of(SmsConstants.SIMULATION_MODE, "true")));
+		registry = new SmsServiceRegistry(null, null, null, null, null);
+
+		noop = (phoneNumber, message) -> blackhole.consume(message);
+		dispatcher = new SmsDispatcher(8, 10_000);
+		async = dispatcher.wrap(noop);
+	}
+
+	@TearDown
+	public void tearDown() {
+		dispatcher.shutdown();
+	}
+
+	@Benchmark
+	public SmsService registryLookup() {
+		return registry.get(config);
+	}
+
+	@Benchmark
+	public void send() {
+		noop.send("+4917012345678", "Your SMS code is 123456 and is valid for 5 minutes.");
+	}
+
+	@Benchmark
+	public Object sendAsync() {
+		return async.sendAsync("+4917012345678", "Your SMS code is 123456 and is valid for 5 minutes.")
+			.toCompletableFuture().join();
+	}
+
+}
@@ -0,0 +1,96 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongToIntFunction;
+
+/**
+ * put/get/expiry of the node-local OTP stores with 10^3 to 10^7 outstanding codes.
+ * Run with -t 1, -t 8 and -t 64 to compare contention, e.g.
+ * java -Xmx8g -jar target/benchmarks.jar OtpStoreBenchmark -t 64
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g", "-XX:MaxDirectMemorySize=2g"})
+@State(Scope.Benchmark)
+public class OtpStoreBenchmark {
+
+	private static final String REALM_ID = "benchmark";
+	private static final long TTL_MILLIS = 300_000;
+
+	@Param({"1000", "100000", "10000000"})
+	int entries;
+
+	@Param({InMemoryOtpStoreProviderFactory.PROVIDER_ID, CompactOtpStoreProviderFactory.PROVIDER_ID, OffHeapOtpStoreProviderFactory.PROVIDER_ID})
+	String storeType;
+
+	OtpStoreProvider store;
+	LongToIntFunction expirer;
+	String[] usernames;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (OffHeapOtpStoreProviderFactory.PROVIDER_ID.equals(storeType)) {
+			// twice the slots of the outstanding codes, so nothing is evicted
+			OffHeapOtpStore offHeapStore = new OffHeapOtpStore(entries * 2);
+			store = offHeapStore;
+			expirer = offHeapStore::expireEntries;
+		} else if (CompactOtpStoreProviderFactory.PROVIDER_ID.equals(storeType)) {
+			CompactOtpStore compactStore = new CompactOtpStore();
+			store = compactStore;
+			expirer = compactStore::expireEntries;
+		} else {
+			InMemoryOtpStore inMemoryStore = new InMemoryOtpStore();
+			store = inMemoryStore;
+			expirer = inMemoryStore::expireEntries;
+		}
+		usernames = new String[entries];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < entries; i++) {
+			usernames[i] = "user-" + i;
+			// deadlines spread over the whole TTL, as with a steady login rate
+			store.put(REALM_ID, usernames[i], new OtpEntry("123456", now, now + (TTL_MILLIS * i / entries)));
+		}
+	}
+
+	private String randomUsername() {
+		return usernames[ThreadLocalRandom.current().nextInt(entries)];
+	}
+
+	@Benchmark
+	public void put() {
+		long now = System.currentTimeMillis();
+		store.put(REALM_ID, randomUsername(), new OtpEntry("654321", now, now + TTL_MILLIS));
+	}
+
+	@Benchmark
+	public OtpEntry get() {
+		return store.get(REALM_ID, randomUsername());
+	}
+
+	/**
+	 * One reaper tick, run concurrently with the other benchmark threads calling it as well.
+	 */
+	@Benchmark
+	public void expire() {
+		synchronized (this) {
+			expirer.applyAsInt(System.currentTimeMillis());
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package thakacreations.keycloak.authenticator;
+
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Values built from authenticator configurations, keyed by config id and a version hashed from the config's contents.
+ * A changed configuration replaces the entry of its id, the entry of a deleted one is evicted once it has not been
+ * used for the idle time.
+ */
+public class ConfigCache<V> {
+
+	// used when the execution has no authenticator configuration at all
+	private static final String DEFAULT_CONFIG_ID = "";
+	private static final long IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+	private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	// the last use is recorded at this granularity, so not every request writes to the shared entry
+	private static final long TOUCH_MILLIS = 1_000;
+
+	private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+	private final Function<Map<String, String>, V> factory;
+	private final LongSupplier clock;
+	private final AtomicLong nextSweep;
+
+	public ConfigCache(Function<Map<String, String>, V> factory) {
+		this(factory, System::currentTimeMillis);
+	}
+
+	ConfigCache(Function<Map<String, String>, V> factory, LongSupplier clock) {
+		this.factory = factory;
+		this.clock = clock;
+		this.nextSweep = new AtomicLong(clock.getAsLong() + SWEEP_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Returns the value built from the given configuration, null for none, building it again only if the
+	 * configuration has changed.
+	 */
+	public V get(AuthenticatorConfigModel config) {
+		String id = config != null && config.getId() != null ? config.getId() : DEFAULT_CONFIG_ID;
+		Map<String, String> contents = config != null && config.getConfig() != null ? config.getConfig() : Map.of();
+		long version = version(contents);
+		long now = clock.getAsLong();
+
+		Entry<V> entry = entries.get(id);
+		if (entry == null || entry.version != version) {
+			entry = new Entry<>(version, factory.apply(contents), now);
+			entries.put(id, entry);
+		} else if (now - entry.lastUsed >= TOUCH_MILLIS) {
+			entry.lastUsed = now;
+		}
+		long sweep = nextSweep.get();
+		if (now >= sweep && nextSweep.compareAndSet(sweep, now + SWEEP_INTERVAL_MILLIS)) {
+			entries.values().removeIf(idle -> now - idle.lastUsed >= IDLE_MILLIS);
+		}
+		return entry.value;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * 64 bit hash of the contents, independent of the iteration order. Unlike Map.hashCode(), which xors key and
+	 * value, it does not collide when two values are swapped or changed alike.
+	 */
+	static long version(Map<String, String> config) {
+		long version = config.size();
+		for (Map.Entry<String, String> option : config.entrySet()) {
+			String value = option.getValue();
+			version += mix((long) option.getKey().hashCode() << 32 ^ (value != null ? value.hashCode() & 0xFFFFFFFFL : 0xFFFFFFFFL));
+		}
+		return version;
+	}
+
+	// finalizer of SplitMix64
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static class Entry<V> {
+		final long version;
+		final V value;
+		volatile long lastUsed;
+
+		Entry(long version, V value, long lastUsed) {
+			this.version = version;
+			this.value = value;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package thakacreations.keycloak.authenticator;
+
+import lombok.experimental.UtilityClass;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Generates numeric OTP codes as primitives. Every thread draws from its own DRBG instance, so no SecureRandom
+ * is shared between threads and nothing is allocated per code. Every attempt draws fresh bytes from the DRBG,
+ * no random bytes are kept for later codes.
+ * Codes are rejection-sampled, every value below 10^length is equally likely.
+ */
+@UtilityClass
+public class OtpCodeGenerator {
+
+	// 10^18 is the largest power of ten below 2^63
+	public static final int MAX_LENGTH = 18;
+
+	private static final long[] POWERS_OF_TEN = new long[MAX_LENGTH + 1];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i <= MAX_LENGTH; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private static final ThreadLocal<Source> SOURCES = ThreadLocal.withInitial(Source::new);
+
+	/**
+	 * Returns a uniformly distributed code in [0, 10^length).
+	 */
+	public static long generate(int length) {
+		if (length < 1 || length > MAX_LENGTH) {
+			throw new IllegalArgumentException("Code length must be between 1 and " + MAX_LENGTH);
+		}
+		long bound = POWERS_OF_TEN[length];
+		// the largest multiple of bound that fits into 63 bits, values above it would favour the small codes
+		long limit = Long.MAX_VALUE - Long.MAX_VALUE % bound;
+		Source source = SOURCES.get();
+		long value;
+		do {
+			value = source.nextLong() >>> 1;
+		} while (value >= limit);
+		return value % bound;
+	}
+
+	/**
+	 * Formats the code with leading zeros to the given number of digits.
+	 */
+	public static String format(long code, int length) {
+		char[] digits = new char[length];
+		for (int i = length - 1; i >= 0; i--) {
+			digits[i] = (char) ('0' + code % 10);
+			code /= 10;
+		}
+		return new String(digits);
+	}
+
+	/**
+	 * Parses a code of exactly the given number of digits, returns -1 for anything else.
+	 */
+	public static long parse(CharSequence code, int length) {
+		if (code == null || code.length() != length || length > MAX_LENGTH) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			char c = code.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static class Source {
+		private final SecureRandom drbg;
+		private final byte[] scratch = new byte[Long.BYTES];
+
+		Source() {
+			SecureRandom random;
+			try {
+				random = SecureRandom.getInstance("DRBG",
+					DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+			} catch (NoSuchAlgorithmException e) {
+				random = new SecureRandom();
+			}
+			drbg = random;
+		}
+
+		long nextLong() {
+			drbg.nextBytes(scratch);
+			long value = 0;
+			for (int i = 0; i < Long.BYTES; i++) {
+				value = value << 8 | scratch[i] & 0xFF;
+			}
+			Arrays.fill(scratch, (byte) 0);
+			return value;
+		}
+	}
+
+}
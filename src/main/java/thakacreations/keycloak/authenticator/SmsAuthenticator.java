@@ -1,8 +1,18 @@
 package thakacreations.keycloak.authenticator;
 
-import thakacreations.keycloak.authenticator.gateway.SmsServiceFactory;
+import thakacreations.keycloak.authenticator.gateway.SmsGatewayUnavailableException;
+import thakacreations.keycloak.authenticator.gateway.SmsRateLimiter;
+import thakacreations.keycloak.authenticator.gateway.SmsService;
+import thakacreations.keycloak.authenticator.gateway.SmsServiceRegistry;
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import thakacreations.keycloak.authenticator.outbox.OutboxEntry;
+import thakacreations.keycloak.authenticator.outbox.SmsOutbox;
+import thakacreations.keycloak.authenticator.store.OtpEntry;
+import thakacreations.keycloak.authenticator.store.OtpStoreProvider;
+import thakacreations.keycloak.authenticator.store.OtpVerification;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.jboss.logging.Logger;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
@@ -12,13 +22,11 @@ import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.sessions.AuthenticationSessionModel;
-import org.keycloak.theme.Theme;
 
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionStage;
 
 /**
  * @author Abdul Nelfrank, https://thaka-creations.github.io/portfolio/, @abdulnelfrank
@@ -26,25 +34,34 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class SmsAuthenticator implements Authenticator {
 
+	private static final Logger log = Logger.getLogger(SmsAuthenticator.class);
+
 	private static final String MOBILE_NUMBER_FIELD = "attributes.phone_number";
 	private static final String TPL_CODE = "login-sms.ftl";
 	
-	// In-memory cache for OTP storage (for Direct Grant flow)
-	// Key format: "realmId:username"
-	private static final Map<String, OtpData> OTP_CACHE = new ConcurrentHashMap<>();
-	
-	private static class OtpData {
-		String code;
-		long expiryTime;
-		
-		OtpData(String code, long expiryTime) {
-			this.code = code;
-			this.expiryTime = expiryTime;
-		}
-		
-		boolean isExpired() {
-			return System.currentTimeMillis() > expiryTime;
-		}
+	// Store provider for OTPs, the single source of truth of both flows (Direct Grant has no persistent auth session)
+	private final String otpStoreProviderId;
+
+	// Gateways built once per authenticator configuration
+	private final SmsServiceRegistry smsServices;
+
+	// Parsed settings per authenticator configuration
+	private final ConfigCache<SmsAuthenticatorSettings> settingsCache = new ConfigCache<>(SmsAuthenticatorSettings::new);
+
+	// Compiled SMS texts per realm, theme and locale
+	private final SmsTemplateCache templateCache = new SmsTemplateCache();
+
+	// Limits the sent SMS per phone number, user, realm and globally, null if no limit is set
+	private final SmsRateLimiter rateLimiter;
+
+	// Write-ahead log of the asynchronously sent SMS, null if disabled
+	private final SmsOutbox outbox;
+
+	public SmsAuthenticator(String otpStoreProviderId, SmsServiceRegistry smsServices, SmsRateLimiter rateLimiter, SmsOutbox outbox) {
+		this.otpStoreProviderId = otpStoreProviderId;
+		this.smsServices = smsServices;
+		this.rateLimiter = rateLimiter;
+		this.outbox = outbox;
 	}
 
 	@Override
@@ -66,38 +83,88 @@ public class SmsAuthenticator implements Authenticator {
 	String mobileNumber = user.getFirstAttribute(MOBILE_NUMBER_FIELD);
 	// mobileNumber of course has to be further validated on proper format, country code, ...
 
-	// Get configuration with defaults if config is not set
-	Map<String, String> configMap = config != null ? config.getConfig() : new HashMap<>();
-	int length = Integer.parseInt(configMap.getOrDefault(SmsConstants.CODE_LENGTH, "6"));
-	int ttl = Integer.parseInt(configMap.getOrDefault(SmsConstants.CODE_TTL, "300"));
-	boolean isSimulationMode = Boolean.parseBoolean(configMap.getOrDefault(SmsConstants.SIMULATION_MODE, "true"));
+	SmsAuthenticatorSettings settings = getSettings(config);
+	int length = settings.getCodeLength();
+	int ttl = settings.getTtl();
+	boolean isSimulationMode = settings.isSimulationMode();
 
-	String code = SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS);
-	AuthenticationSessionModel authSession = context.getAuthenticationSession();
-	long expiryTime = System.currentTimeMillis() + (ttl * 1000L);
-	
-	// Store in session for browser flows
-	authSession.setAuthNote(SmsConstants.CODE, code);
-	authSession.setAuthNote(SmsConstants.CODE_TTL, Long.toString(expiryTime));
-	
-	// Store in cache for Direct Grant flows (persistent across requests)
-	String cacheKey = getCacheKey(context);
-	OTP_CACHE.put(cacheKey, new OtpData(code, expiryTime));
+	// Resend window: an unexpired code is reused instead of sending another SMS,
+	// a new one is only sent on explicit resend=true once the resend interval has elapsed
+	if (settings.getResendInterval() > 0) {
+		long now = System.currentTimeMillis();
+		OtpEntry issued = getOtpStore(context).get(context.getRealm().getId(), user.getUsername());
+		// a code locked by failed attempts is replaced by a new one
+		if (issued != null && !issued.isExpired(now) && !issued.isLocked(settings.getMaxAttempts())) {
+			long resendTime = issued.getIssuedTime() + settings.getResendInterval() * 1000L;
+			boolean resend = Boolean.parseBoolean(context.getHttpRequest().getDecodedFormParameters().getFirst(SmsConstants.RESEND));
+			if (!resend || now < resendTime) {
+				reuseOtp(context, issued, resendTime, now, isSimulationMode);
+				return;
+			}
+		}
+	}
+
+	// Only SMS actually sent are limited, a rejected request gets no new code
+	if (!isSimulationMode && rateLimiter != null) {
+		long retryAfterMillis = rateLimiter.tryAcquire(context.getRealm().getId(), user.getId(), mobileNumber);
+		if (retryAfterMillis > 0) {
+			rateLimited(context, retryAfterMillis);
+			return;
+		}
+	}
+
+	long issuedTime = System.currentTimeMillis();
+	long expiryTime = issuedTime + (ttl * 1000L);
+	// the code stays a number until the SMS text or a store keeping text formats it,
+	// codes too long for a long fall back to the SecretGenerator
+	OtpEntry entry = length <= OtpCodeGenerator.MAX_LENGTH
+		? new OtpEntry(OtpCodeGenerator.generate(length), length, issuedTime, expiryTime)
+		: new OtpEntry(SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS), issuedTime, expiryTime);
 	
-	// Clean up expired entries periodically
-	cleanExpiredEntries();
+	// Store in OTP store for both flows (persistent across requests, counts the failed attempts),
+	// a code not admitted by a full store is never sent
+	if (!getOtpStore(context).put(context.getRealm().getId(), user.getUsername(), entry)) {
+		if (!isSimulationMode && rateLimiter != null) {
+			// nothing is sent, the request does not count against the limits
+			rateLimiter.release(context.getRealm().getId(), user.getId(), mobileNumber);
+		}
+		otpRejected(context);
+		return;
+	}
 
 	boolean isDirectGrant = isDirectGrantFlow(context);
+	SmsMetrics.otpIssued(context.getRealm().getId(), isDirectGrant);
 
 		try {
 			// Send SMS in production mode
 			if (!isSimulationMode) {
-				Theme theme = session.theme().getTheme(Theme.Type.LOGIN);
-				Locale locale = session.getContext().resolveLocale(user);
-			String smsAuthText = theme.getMessages(locale).getProperty("smsAuthText");
-			String smsText = String.format(smsAuthText, code, Math.floorDiv(ttl, 60));
+			String smsText = templateCache.get(session, user).render(entry, Math.floorDiv(ttl, 60));
 
-			SmsServiceFactory.get(configMap).send(mobileNumber, smsText);
+			// resolved only when actually sending, simulation mode never builds a gateway
+			SmsService smsService = smsServices.get(config);
+			if (!smsService.isAvailable()) {
+				// fail fast instead of queueing a send that is going to be rejected
+				throw new SmsGatewayUnavailableException("SMS gateway is currently unavailable");
+			}
+			if (smsServices.isAsync()) {
+				// on disk before it is queued, so it is sent even if this node dies before the gateway call
+				long outboxId = outbox != null
+					? outbox.append(context.getRealm().getId(), config != null ? config.getId() : null, user.getId(), issuedTime, expiryTime)
+					: -1;
+				String realmId = context.getRealm().getId();
+				String userId = user.getId();
+				smsService.sendAsync(mobileNumber, smsText).whenComplete((result, e) -> {
+					if (outboxId >= 0) {
+						outbox.ack(outboxId);
+					}
+					if (e != null) {
+						// the user id only, the phone number is personal data
+						log.errorf(e, "Failed to send SMS to user %s of realm %s", userId, realmId);
+					}
+				});
+			} else {
+				smsService.send(mobileNumber, smsText);
+			}
 			}
 
 		// Return appropriate response based on flow type
@@ -110,7 +177,7 @@ public class SmsAuthenticator implements Authenticator {
 			
 			// Include OTP in response only in simulation mode
 			if (isSimulationMode) {
-				responseData.put("otp", code);
+				responseData.put("otp", entry.getCode());
 				responseData.put("email", user.getEmail());
 			}
 
@@ -152,30 +219,21 @@ public class SmsAuthenticator implements Authenticator {
 	}
 
 	private void validateOtp(AuthenticationFlowContext context, String enteredCode) {
-		AuthenticationSessionModel authSession = context.getAuthenticationSession();
 		boolean isDirectGrant = isDirectGrantFlow(context);
 		
-		String code = null;
-		Long expiryTime = null;
-		
-		// Try to get from auth notes first (browser flow)
-		code = authSession.getAuthNote(SmsConstants.CODE);
-		String ttlStr = authSession.getAuthNote(SmsConstants.CODE_TTL);
-		
-		if (code != null && ttlStr != null) {
-			expiryTime = Long.parseLong(ttlStr);
-		} else {
-			// Fallback to cache for Direct Grant flow
-			String cacheKey = getCacheKey(context);
-			OtpData otpData = OTP_CACHE.get(cacheKey);
-			
-			if (otpData != null) {
-				code = otpData.code;
-				expiryTime = otpData.expiryTime;
-			}
-		}
+		OtpStoreProvider otpStore = getOtpStore(context);
+		String realmId = context.getRealm().getId();
+		String username = context.getUser().getUsername();
+		long now = System.currentTimeMillis();
+
+		int maxAttempts = getSettings(context.getAuthenticatorConfig()).getMaxAttempts();
 
-		if (code == null || expiryTime == null) {
+		// Both flows check and consume, or count the failed attempt, in one step of the OTP store, so a code is
+		// only accepted once and guessing stops after maxAttempts, however many auth sessions the user starts
+		OtpVerification verification = otpStore.verifyAndConsume(realmId, username, enteredCode, now, maxAttempts);
+
+		if (verification == OtpVerification.NOT_FOUND) {
+			SmsMetrics.otpValidated(realmId, isDirectGrant, SmsMetrics.OUTCOME_NO_SESSION);
 			if (isDirectGrant) {
 				Map<String, Object> errorData = new HashMap<>();
 				errorData.put("error", "invalid_request");
@@ -194,10 +252,31 @@ public class SmsAuthenticator implements Authenticator {
 			return;
 		}
 
-		boolean isValid = enteredCode != null && enteredCode.equals(code);
-		if (isValid) {
-			if (expiryTime < System.currentTimeMillis()) {
+		if (verification == OtpVerification.LOCKED) {
+			// too many wrong codes, only a new code helps
+			SmsMetrics.otpValidated(realmId, isDirectGrant, SmsMetrics.OUTCOME_OTP_LOCKED);
+			if (isDirectGrant) {
+				Map<String, Object> errorData = new HashMap<>();
+				errorData.put("error", "otp_locked");
+				errorData.put("message", "Too many invalid OTP codes, request a new one");
+
+				Response response = Response.status(Response.Status.BAD_REQUEST)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(errorData)
+					.build();
+
+				context.failure(AuthenticationFlowError.INVALID_CREDENTIALS, response);
+			} else {
+				context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
+					context.form().setError("smsAuthCodeLocked").createErrorPage(Response.Status.BAD_REQUEST));
+			}
+			return;
+		}
+
+		if (verification != OtpVerification.INVALID) {
+			if (verification == OtpVerification.EXPIRED) {
 				// expired
+				SmsMetrics.otpValidated(realmId, isDirectGrant, SmsMetrics.OUTCOME_OTP_EXPIRED);
 				if (isDirectGrant) {
 					Map<String, Object> errorData = new HashMap<>();
 					errorData.put("error", "otp_expired");
@@ -214,18 +293,13 @@ public class SmsAuthenticator implements Authenticator {
 						context.form().setError("smsAuthCodeExpired").createErrorPage(Response.Status.BAD_REQUEST));
 				}
 			} else {
-				// valid - clear the OTP to prevent reuse
-				authSession.removeAuthNote(SmsConstants.CODE);
-				authSession.removeAuthNote(SmsConstants.CODE_TTL);
-				
-				// Clear from cache as well
-				String cacheKey = getCacheKey(context);
-				OTP_CACHE.remove(cacheKey);
-				
+				// valid - the store entry is already consumed
+				SmsMetrics.otpValidated(realmId, isDirectGrant, SmsMetrics.OUTCOME_SUCCESS);
 				context.success();
 			}
 		} else {
 			// invalid
+			SmsMetrics.otpValidated(realmId, isDirectGrant, SmsMetrics.OUTCOME_INVALID_OTP);
 			if (isDirectGrant) {
 				Map<String, Object> errorData = new HashMap<>();
 				errorData.put("error", "invalid_otp");
@@ -250,11 +324,87 @@ public class SmsAuthenticator implements Authenticator {
 		}
 	}
 
+	/**
+	 * Answers like a fresh issuance, but with the remaining lifetime of the already sent code.
+	 */
+	private void reuseOtp(AuthenticationFlowContext context, OtpEntry issued, long resendTime, long now, boolean isSimulationMode) {
+		boolean isDirectGrant = isDirectGrantFlow(context);
+		SmsMetrics.otpReused(context.getRealm().getId(), isDirectGrant);
+
+		if (isDirectGrant) {
+			Map<String, Object> responseData = new HashMap<>();
+			responseData.put("status", "otp_required");
+			responseData.put("message", isSimulationMode ? "OTP verification required" : "OTP already sent to your phone");
+			responseData.put("expires_in", Math.floorDiv(issued.getExpiryTime() - now, 1000));
+			responseData.put("resend_after", Math.max(0, Math.floorDiv(resendTime - now + 999, 1000)));
+
+			// Include OTP in response only in simulation mode
+			if (isSimulationMode) {
+				responseData.put("otp", issued.getCode());
+				responseData.put("email", context.getUser().getEmail());
+			}
+
+			Response response = Response.status(Response.Status.OK)
+				.type(MediaType.APPLICATION_JSON)
+				.entity(responseData)
+				.build();
+
+			context.failure(AuthenticationFlowError.INVALID_CREDENTIALS, response);
+		} else {
+			context.challenge(context.form().setAttribute("realm", context.getRealm()).createForm(TPL_CODE));
+		}
+	}
+
+	private void rateLimited(AuthenticationFlowContext context, long retryAfterMillis) {
+		boolean isDirectGrant = isDirectGrantFlow(context);
+		long retryAfterSeconds = Math.max(1, (retryAfterMillis + 999) / 1000);
+		SmsMetrics.smsRateLimited(context.getRealm().getId(), isDirectGrant);
+
+		if (isDirectGrant) {
+			Map<String, Object> errorData = new HashMap<>();
+			errorData.put("error", "rate_limited");
+			errorData.put("message", "Too many OTP requests, retry later");
+			errorData.put("retry_after", retryAfterSeconds);
+
+			Response response = Response.status(Response.Status.TOO_MANY_REQUESTS)
+				.type(MediaType.APPLICATION_JSON)
+				.header("Retry-After", Long.toString(retryAfterSeconds))
+				.entity(errorData)
+				.build();
+
+			context.failure(AuthenticationFlowError.ACCESS_DENIED, response);
+		} else {
+			context.failureChallenge(AuthenticationFlowError.ACCESS_DENIED,
+				context.form().setAttribute("realm", context.getRealm())
+					.setError("smsAuthRateLimited", retryAfterSeconds).createForm(TPL_CODE));
+		}
+	}
+
+	private void otpRejected(AuthenticationFlowContext context) {
+		boolean isDirectGrant = isDirectGrantFlow(context);
+
+		if (isDirectGrant) {
+			Map<String, Object> errorData = new HashMap<>();
+			errorData.put("error", "otp_unavailable");
+			errorData.put("message", "Too many pending OTP codes, retry later");
+
+			Response response = Response.status(Response.Status.SERVICE_UNAVAILABLE)
+				.type(MediaType.APPLICATION_JSON)
+				.entity(errorData)
+				.build();
+
+			context.failure(AuthenticationFlowError.INTERNAL_ERROR, response);
+		} else {
+			context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
+				context.form().setError("smsAuthCodeRejected").createErrorPage(Response.Status.SERVICE_UNAVAILABLE));
+		}
+	}
+
 	/**
 	 * Detects if the current request is a Direct Grant flow
 	 * by checking the request path (token endpoint) or content type expectations
 	 */
-	private boolean isDirectGrantFlow(AuthenticationFlowContext context) {
+	boolean isDirectGrantFlow(AuthenticationFlowContext context) {
 		// Check if the request URI contains the token endpoint
 		String requestUri = context.getUriInfo().getRequestUri().getPath();
 		if (requestUri.contains("/token")) {
@@ -290,21 +440,39 @@ public class SmsAuthenticator implements Authenticator {
 	}
 
 	/**
-	 * Generate cache key for OTP storage
-	 * Format: realmId:username
+	 * Returns the parsed settings of the given configuration, parsing them again only if it has changed.
 	 */
-	private String getCacheKey(AuthenticationFlowContext context) {
-		String realmId = context.getRealm().getId();
-		String username = context.getUser().getUsername();
-		return realmId + ":" + username;
+	private SmsAuthenticatorSettings getSettings(AuthenticatorConfigModel config) {
+		// no configuration at all falls back to the defaults
+		return settingsCache.get(config);
 	}
-	
+
 	/**
-	 * Clean up expired OTP entries from cache
+	 * Sends an SMS recovered from the outbox again, rebuilt from the code the OTP store still holds. Returns null
+	 * if there is nothing left to send: the user or the phone number is gone, or the code has been used, replaced
+	 * by a newer one, locked or has expired.
 	 */
-	private void cleanExpiredEntries() {
-		long now = System.currentTimeMillis();
-		OTP_CACHE.entrySet().removeIf(entry -> entry.getValue().isExpired());
+	public CompletionStage<Void> resend(KeycloakSession session, RealmModel realm, OutboxEntry entry) throws IOException {
+		UserModel user = session.users().getUserById(realm, entry.userId());
+		String mobileNumber = user != null ? user.getFirstAttribute(MOBILE_NUMBER_FIELD) : null;
+		if (mobileNumber == null) {
+			return null;
+		}
+		AuthenticatorConfigModel config = entry.configId().isEmpty() ? null : realm.getAuthenticatorConfigById(entry.configId());
+		SmsAuthenticatorSettings settings = getSettings(config);
+		OtpEntry issued = session.getProvider(OtpStoreProvider.class, otpStoreProviderId).get(realm.getId(), user.getUsername());
+		if (settings.isSimulationMode() || issued == null || issued.getIssuedTime() != entry.issuedTime()
+			|| issued.isExpired(System.currentTimeMillis()) || issued.isLocked(settings.getMaxAttempts())) {
+			return null;
+		}
+		session.getContext().setRealm(realm);
+		int ttl = (int) ((issued.getExpiryTime() - issued.getIssuedTime()) / 1000);
+		String smsText = templateCache.get(session, user).render(issued, Math.floorDiv(ttl, 60));
+		return smsServices.get(config).sendAsync(mobileNumber, smsText);
+	}
+
+	private OtpStoreProvider getOtpStore(AuthenticationFlowContext context) {
+		return context.getSession().getProvider(OtpStoreProvider.class, otpStoreProviderId);
 	}
 
 	@Override
@@ -1,15 +1,35 @@
 package thakacreations.keycloak.authenticator;
 
+import thakacreations.keycloak.authenticator.gateway.CircuitBreakers;
+import thakacreations.keycloak.authenticator.gateway.HedgingPolicy;
+import thakacreations.keycloak.authenticator.gateway.RetryPolicy;
+import thakacreations.keycloak.authenticator.gateway.SmsDispatcher;
+import thakacreations.keycloak.authenticator.gateway.SmsRateLimiter;
+import thakacreations.keycloak.authenticator.gateway.SmsServiceRegistry;
+import thakacreations.keycloak.authenticator.gateway.SnsClients;
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import thakacreations.keycloak.authenticator.outbox.OutboxEntry;
+import thakacreations.keycloak.authenticator.outbox.SmsOutbox;
+import thakacreations.keycloak.authenticator.store.InfinispanOtpStoreProviderFactory;
+import thakacreations.keycloak.authenticator.store.OtpStoreProvider;
+import thakacreations.keycloak.authenticator.store.OtpStoreProviderFactory;
 import com.google.auto.service.AutoService;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.models.utils.PostMigrationEvent;
 import org.keycloak.provider.ProviderConfigProperty;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.CompletionStage;
 
 /**
  * @author Abdul Nelfrank, https://thaka-creations.github.io/portfolio/, @abdulnelfrank
@@ -19,7 +39,25 @@ public class SmsAuthenticatorFactory implements AuthenticatorFactory {
 
 	public static final String PROVIDER_ID = "sms-authenticator";
 
-	private static final SmsAuthenticator SINGLETON = new SmsAuthenticator();
+	private static final Logger log = Logger.getLogger(SmsAuthenticatorFactory.class);
+
+	private SmsAuthenticator singleton;
+
+	private SmsDispatcher dispatcher;
+
+	private SnsClients snsClients;
+
+	private HedgingPolicy hedgingPolicy;
+
+	private SmsServiceRegistry smsServices;
+
+	private SmsOutbox outbox;
+
+	private SmsRateLimiter rateLimiter;
+
+	private String otpStoreId;
+
+	private boolean snsWarmUp;
 
 	@Override
 	public String getId() {
@@ -62,25 +100,152 @@ public class SmsAuthenticatorFactory implements AuthenticatorFactory {
 			new ProviderConfigProperty(SmsConstants.CODE_LENGTH, "Code length", "The number of digits of the generated code.", ProviderConfigProperty.STRING_TYPE, 6),
 			new ProviderConfigProperty(SmsConstants.CODE_TTL, "Time-to-live", "The time to live in seconds for the code to be valid.", ProviderConfigProperty.STRING_TYPE, "300"),
 			new ProviderConfigProperty(SmsConstants.SENDER_ID, "SenderId", "The sender ID is displayed as the message sender on the receiving device.", ProviderConfigProperty.STRING_TYPE, "Keycloak"),
-			new ProviderConfigProperty(SmsConstants.SIMULATION_MODE, "Simulation mode", "In simulation mode, the SMS won't be sent, but printed to the server logs", ProviderConfigProperty.BOOLEAN_TYPE, true)
+			new ProviderConfigProperty(SmsConstants.SIMULATION_MODE, "Simulation mode", "In simulation mode, the SMS won't be sent, but printed to the server logs", ProviderConfigProperty.BOOLEAN_TYPE, true),
+			new ProviderConfigProperty(SmsConstants.RESEND_INTERVAL, "Resend interval", "If greater than 0, an unexpired code is reused instead of sending a new SMS. A new code is only sent on an explicit resend request, at most once per this many seconds.", ProviderConfigProperty.STRING_TYPE, "0"),
+			new ProviderConfigProperty(SmsConstants.MAX_ATTEMPTS, "Maximum attempts", "Number of wrong codes after which the code is invalidated and a new one has to be requested. 0 for no limit.", ProviderConfigProperty.STRING_TYPE, "5"),
+			new ProviderConfigProperty(SmsConstants.REGION, "AWS region", "The AWS region of the SNS endpoint. Leave empty to use the server default region.", ProviderConfigProperty.STRING_TYPE, ""),
+			new ProviderConfigProperty(SmsConstants.GATEWAYS, "SMS gateways", "Comma separated list of the gateways to send through: sns and/or http. With more than one, each SMS is routed to the fastest healthy gateway for its country code and fails over to the others.", ProviderConfigProperty.STRING_TYPE, "sns"),
+			new ProviderConfigProperty(SmsConstants.HTTP_URL, "HTTP gateway URL", "URL the http gateway POSTs {\"to\", \"from\", \"text\"} as JSON to.", ProviderConfigProperty.STRING_TYPE, ""),
+			new ProviderConfigProperty(SmsConstants.HTTP_AUTHORIZATION, "HTTP gateway authorization", "Value of the Authorization header sent to the http gateway, e.g. Bearer <token>.", ProviderConfigProperty.PASSWORD, "")
 		);
 	}
 
 	@Override
 	public Authenticator create(KeycloakSession session) {
-		return SINGLETON;
+		return singleton;
 	}
 
 	@Override
 	public void init(Config.Scope config) {
+		if (config.getBoolean(SmsConstants.ASYNC_DISPATCH, false)) {
+			dispatcher = new SmsDispatcher(config.getInt("dispatchThreads", 8), config.getInt("dispatchQueueSize", 1000));
+		}
+		RetryPolicy retryPolicy = new RetryPolicy(config);
+		snsClients = new SnsClients(config, retryPolicy);
+		snsWarmUp = config.getBoolean("snsWarmUp", false);
+		rateLimiter = new SmsRateLimiter(config);
+		CircuitBreakers circuitBreakers = new CircuitBreakers(config);
+		hedgingPolicy = new HedgingPolicy(config);
+		smsServices = new SmsServiceRegistry(dispatcher, snsClients,
+			retryPolicy.isEnabled() ? retryPolicy : null, circuitBreakers.isEnabled() ? circuitBreakers : null,
+			hedgingPolicy.isEnabled() ? hedgingPolicy : null);
+		String outboxDirectory = config.get("outboxDirectory");
+		if (outboxDirectory != null && !outboxDirectory.isBlank()) {
+			if (dispatcher != null) {
+				outbox = new SmsOutbox(Path.of(outboxDirectory), config.getInt("outboxSegmentSize", 16 * 1024 * 1024));
+			} else {
+				log.warn("The SMS outbox requires asynchronous dispatch, ignoring outbox-directory");
+			}
+		}
+		// see the sms-otp-store SPI, cluster-wide by default as the browser flow keeps its codes in the store only
+		otpStoreId = config.get(SmsConstants.OTP_STORE, InfinispanOtpStoreProviderFactory.PROVIDER_ID);
+		singleton = new SmsAuthenticator(otpStoreId, smsServices, rateLimiter.isEnabled() ? rateLimiter : null, outbox);
 	}
 
 	@Override
 	public void postInit(KeycloakSessionFactory factory) {
+		if (!(factory.getProviderFactory(OtpStoreProvider.class, otpStoreId) instanceof OtpStoreProviderFactory store)) {
+			throw new IllegalStateException("Unknown OTP store " + otpStoreId);
+		}
+		if (!store.isClusterWide()) {
+			log.warnf("The %s OTP store keeps the codes on the node that issued them, in a cluster every login has to stay on one node "
+				+ "(sticky sessions) or the codes are not found, use the infinispan or redis store instead", otpStoreId);
+		}
+		snsClients.registerMetrics();
+		factory.register(event -> {
+			if (event instanceof RealmModel.RealmRemovedEvent removed) {
+				SmsMetrics.removeRealm(removed.getRealm().getId());
+			}
+		});
+		if (snsWarmUp) {
+			SnsClients clients = snsClients;
+			Thread warmUp = new Thread(() -> {
+				try {
+					clients.warmUp();
+				} catch (RuntimeException e) {
+					log.warn("SNS client warm-up failed, the client is initialized on first use", e);
+				}
+			}, "sns-warm-up");
+			warmUp.setDaemon(true);
+			warmUp.start();
+		}
+		if (outbox != null) {
+			outbox.registerMetrics();
+			List<OutboxEntry> recovered = outbox.getRecovered();
+			if (!recovered.isEmpty() && store.isClusterWide()) {
+				// realms and authenticator configs can be read once the database has been migrated
+				factory.register(event -> {
+					if (event instanceof PostMigrationEvent) {
+						replayOutbox(factory);
+					}
+				});
+			} else if (!recovered.isEmpty()) {
+				// a node-local store lost the codes with the node, they cannot be sent again
+				log.infof("Dropping %d SMS recovered from the outbox, the %s OTP store has not kept their codes", recovered.size(), otpStoreId);
+				recovered.forEach(entry -> outbox.ack(entry.id()));
+			}
+		}
+	}
+
+	/**
+	 * Sends the SMS recovered from the outbox again whose codes the cluster-wide OTP store still holds, with the
+	 * gateway of the authenticator config they were issued with. All others are acknowledged without sending.
+	 */
+	private void replayOutbox(KeycloakSessionFactory factory) {
+		SmsOutbox recoveredFrom = outbox;
+		SmsAuthenticator authenticator = singleton;
+		KeycloakModelUtils.runJobInTransaction(factory, session -> {
+			long now = System.currentTimeMillis();
+			int resent = 0;
+			for (OutboxEntry entry : recoveredFrom.getRecovered()) {
+				RealmModel realm = session.realms().getRealm(entry.realmId());
+				CompletionStage<Void> send = null;
+				if (realm != null && !entry.isExpired(now)) {
+					try {
+						send = authenticator.resend(session, realm, entry);
+					} catch (IOException | RuntimeException e) {
+						log.errorf(e, "Failed to rebuild the SMS recovered from the outbox for user %s", entry.userId());
+					}
+				}
+				if (send == null) {
+					recoveredFrom.ack(entry.id());
+					continue;
+				}
+				resent++;
+				send.whenComplete((result, e) -> {
+					recoveredFrom.ack(entry.id());
+					if (e != null) {
+						log.errorf(e, "Failed to send the SMS recovered from the outbox for user %s", entry.userId());
+					}
+				});
+			}
+			log.infof("Resent %d of %d SMS recovered from the outbox", resent, recoveredFrom.getRecovered().size());
+		});
 	}
 
 	@Override
 	public void close() {
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+			dispatcher = null;
+		}
+		if (outbox != null) {
+			// after the dispatcher, so the sends it completed while shutting down are acknowledged
+			outbox.close();
+			outbox = null;
+		}
+		if (rateLimiter != null) {
+			rateLimiter.close();
+			rateLimiter = null;
+		}
+		if (hedgingPolicy != null) {
+			hedgingPolicy.shutdown();
+			hedgingPolicy = null;
+		}
+		if (snsClients != null) {
+			snsClients.close();
+			snsClients = null;
+		}
 	}
 
 }
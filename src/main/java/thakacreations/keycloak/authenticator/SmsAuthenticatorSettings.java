@@ -0,0 +1,62 @@
+package thakacreations.keycloak.authenticator;
+
+import thakacreations.keycloak.authenticator.gateway.SmsServiceFactory;
+
+import java.util.Map;
+
+/**
+ * Parsed, immutable view of an authenticator configuration, built once per configuration
+ * and reused until the configuration changes.
+ */
+public class SmsAuthenticatorSettings {
+
+	private final int codeLength;
+	private final int ttl;
+	private final String senderId;
+	private final boolean simulationMode;
+	private final int resendInterval;
+	private final int maxAttempts;
+
+	SmsAuthenticatorSettings(Map<String, String> config) {
+		this.codeLength = Integer.parseInt(config.getOrDefault(SmsConstants.CODE_LENGTH, "6"));
+		this.ttl = Integer.parseInt(config.getOrDefault(SmsConstants.CODE_TTL, "300"));
+		this.senderId = config.get(SmsConstants.SENDER_ID);
+		this.simulationMode = SmsServiceFactory.isSimulation(config);
+		this.resendInterval = Integer.parseInt(config.getOrDefault(SmsConstants.RESEND_INTERVAL, "0"));
+		this.maxAttempts = Integer.parseInt(config.getOrDefault(SmsConstants.MAX_ATTEMPTS, "5"));
+	}
+
+	public int getCodeLength() {
+		return codeLength;
+	}
+
+	/**
+	 * Time-to-live of the code in seconds
+	 */
+	public int getTtl() {
+		return ttl;
+	}
+
+	public String getSenderId() {
+		return senderId;
+	}
+
+	public boolean isSimulationMode() {
+		return simulationMode;
+	}
+
+	/**
+	 * Minimum seconds between two SMS of the same code lifetime, 0 if every request sends a new code
+	 */
+	public int getResendInterval() {
+		return resendInterval;
+	}
+
+	/**
+	 * Failed attempts after which a code is invalidated, 0 for no limit
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+}
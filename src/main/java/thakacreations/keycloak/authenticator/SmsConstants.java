@@ -7,7 +7,16 @@ public class SmsConstants {
 	public static final String CODE = "code";
 	public static final String CODE_LENGTH = "length";
 	public static final String CODE_TTL = "ttl";
+	public static final String MAX_ATTEMPTS = "maxAttempts";
 	public static final String SENDER_ID = "senderId";
 	public static final String SIMULATION_MODE = "simulation";
+	public static final String REGION = "region";
+	public static final String GATEWAYS = "gateways";
+	public static final String HTTP_URL = "httpUrl";
+	public static final String HTTP_AUTHORIZATION = "httpAuthorization";
 	public static final String OTP = "otp";
+	public static final String RESEND = "resend";
+	public static final String RESEND_INTERVAL = "resendInterval";
+	public static final String OTP_STORE = "otpStore";
+	public static final String ASYNC_DISPATCH = "asyncDispatch";
 }
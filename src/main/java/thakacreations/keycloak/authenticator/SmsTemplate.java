@@ -0,0 +1,128 @@
+package thakacreations.keycloak.authenticator;
+
+import thakacreations.keycloak.authenticator.store.OtpEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The smsAuthText message pre-split into literal and placeholder segments.
+ * Argument 1 is the code, argument 2 the validity in minutes, as with String.format.
+ * Patterns using formatting features beyond plain %s, %d, %n and %% are rendered with String.format.
+ */
+public class SmsTemplate {
+
+	private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(160));
+
+	private final String pattern;
+	// String for literals, Integer for the argument index of a placeholder, null if not compilable
+	private final Object[] segments;
+
+	private SmsTemplate(String pattern, Object[] segments) {
+		this.pattern = pattern;
+		this.segments = segments;
+	}
+
+	public static SmsTemplate compile(String pattern) {
+		return new SmsTemplate(pattern, split(pattern));
+	}
+
+	public String render(String code, long validityMinutes) {
+		return render(code, -1, 0, validityMinutes);
+	}
+
+	/**
+	 * Renders the code of the entry, a numeric code is written into the text without formatting it first.
+	 */
+	public String render(OtpEntry entry, long validityMinutes) {
+		if (entry.getCodeDigits() < 0 || segments == null) {
+			return render(entry.getCode(), validityMinutes);
+		}
+		return render(null, entry.getCodeDigits(), entry.getCodeLength(), validityMinutes);
+	}
+
+	private String render(String code, long digits, int length, long validityMinutes) {
+		if (segments == null) {
+			return String.format(pattern, code, validityMinutes);
+		}
+		StringBuilder builder = BUILDER.get();
+		builder.setLength(0);
+		for (Object segment : segments) {
+			if (segment instanceof String literal) {
+				builder.append(literal);
+			} else if ((Integer) segment == 1) {
+				if (code != null) {
+					builder.append(code);
+				} else {
+					appendDigits(builder, digits, length);
+				}
+			} else {
+				builder.append(validityMinutes);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static void appendDigits(StringBuilder builder, long digits, int length) {
+		int start = builder.length();
+		builder.setLength(start + length);
+		for (int i = start + length - 1; i >= start; i--) {
+			builder.setCharAt(i, (char) ('0' + digits % 10));
+			digits /= 10;
+		}
+	}
+
+	private static Object[] split(String pattern) {
+		List<Object> segments = new ArrayList<>();
+		StringBuilder literal = new StringBuilder();
+		int nextIndex = 1;
+		int i = 0;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i++);
+			if (c != '%') {
+				literal.append(c);
+				continue;
+			}
+			if (i >= pattern.length()) {
+				return null;
+			}
+			int index;
+			int start = i;
+			while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+				i++;
+			}
+			if (i > start && i < pattern.length() && pattern.charAt(i) == '$') {
+				index = Integer.parseInt(pattern.substring(start, i));
+				i++;
+			} else if (i == start) {
+				index = 0;
+			} else {
+				// width without argument index
+				return null;
+			}
+			if (i >= pattern.length()) {
+				return null;
+			}
+			char conversion = pattern.charAt(i++);
+			if (conversion == '%' && index == 0) {
+				literal.append('%');
+			} else if (conversion == 'n' && index == 0) {
+				literal.append(System.lineSeparator());
+			} else if ((conversion == 's' && (index == 1 || index == 0 && nextIndex == 1))
+				|| (conversion == 'd' && (index == 2 || index == 0 && nextIndex == 2))) {
+				if (literal.length() > 0) {
+					segments.add(literal.toString());
+					literal.setLength(0);
+				}
+				segments.add(index != 0 ? index : nextIndex++);
+			} else {
+				return null;
+			}
+		}
+		if (literal.length() > 0) {
+			segments.add(literal.toString());
+		}
+		return segments.toArray();
+	}
+
+}
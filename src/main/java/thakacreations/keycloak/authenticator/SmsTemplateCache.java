@@ -0,0 +1,48 @@
+package thakacreations.keycloak.authenticator;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiled SMS templates per realm, login theme and locale.
+ * An entry belongs to the theme instance it was compiled from, clearing Keycloak's theme cache
+ * yields new theme instances and thereby recompiles the templates.
+ * Nothing is cached while theme caching is disabled, e.g. in development mode.
+ */
+public class SmsTemplateCache {
+
+	private static final String MESSAGE_KEY = "smsAuthText";
+
+	private final Map<Key, Entry> templates = new ConcurrentHashMap<>();
+
+	public SmsTemplate get(KeycloakSession session, UserModel user) throws IOException {
+		ThemeManager themeManager = session.theme();
+		Theme theme = themeManager.getTheme(Theme.Type.LOGIN);
+		Locale locale = session.getContext().resolveLocale(user);
+		if (!themeManager.isCacheEnabled()) {
+			return SmsTemplate.compile(theme.getMessages(locale).getProperty(MESSAGE_KEY));
+		}
+
+		Key key = new Key(session.getContext().getRealm().getId(), theme.getName(), locale);
+		Entry entry = templates.get(key);
+		if (entry == null || entry.theme != theme) {
+			entry = new Entry(theme, SmsTemplate.compile(theme.getMessages(locale).getProperty(MESSAGE_KEY)));
+			templates.put(key, entry);
+		}
+		return entry.template;
+	}
+
+	private record Key(String realmId, String themeName, Locale locale) {
+	}
+
+	private record Entry(Theme theme, SmsTemplate template) {
+	}
+
+}
@@ -0,0 +1,39 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Hands the sending of the wrapped service over to the dispatcher.
+ */
+class AsyncSmsService implements SmsService {
+
+	private final SmsService delegate;
+	private final SmsDispatcher dispatcher;
+
+	AsyncSmsService(SmsService delegate, SmsDispatcher dispatcher) {
+		this.delegate = delegate;
+		this.dispatcher = dispatcher;
+	}
+
+	@Override
+	public void send(String phoneNumber, String message) {
+		delegate.send(phoneNumber, message);
+	}
+
+	@Override
+	public CompletionStage<Void> sendAsync(String phoneNumber, String message) {
+		CompletableFuture<Void> future = dispatcher.dispatch(delegate, phoneNumber, message);
+		if (future == null) {
+			// queue is full, fall back to sending on the caller thread as backpressure
+			return delegate.sendAsync(phoneNumber, message);
+		}
+		return future;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return delegate.isAvailable();
+	}
+
+}
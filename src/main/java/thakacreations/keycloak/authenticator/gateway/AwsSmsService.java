@@ -3,7 +3,6 @@ package thakacreations.keycloak.authenticator.gateway;
 import software.amazon.awssdk.services.sns.SnsClient;
 import software.amazon.awssdk.services.sns.model.MessageAttributeValue;
 
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -11,22 +10,19 @@ import java.util.Map;
  */
 public class AwsSmsService implements SmsService {
 
-	private static final SnsClient sns = SnsClient.create();
+	private final SnsClient sns;
+	private final Map<String, MessageAttributeValue> messageAttributes;
 
-	private final String senderId;
-
-	AwsSmsService(Map<String, String> config) {
-		senderId = config.get("senderId");
+	AwsSmsService(Map<String, String> config, SnsClient sns) {
+		this.sns = sns;
+		String senderId = config.get("senderId");
+		messageAttributes = Map.of(
+			"AWS.SNS.SMS.SenderID", MessageAttributeValue.builder().stringValue(senderId).dataType("String").build(),
+			"AWS.SNS.SMS.SMSType", MessageAttributeValue.builder().stringValue("Transactional").dataType("String").build());
 	}
 
 	@Override
 	public void send(String phoneNumber, String message) {
-		Map<String, MessageAttributeValue> messageAttributes = new HashMap<>();
-		messageAttributes.put("AWS.SNS.SMS.SenderID",
-			MessageAttributeValue.builder().stringValue(senderId).dataType("String").build());
-		messageAttributes.put("AWS.SNS.SMS.SMSType",
-			MessageAttributeValue.builder().stringValue("Transactional").dataType("String").build());
-
 		sns.publish(builder -> builder
 			.message(message)
 			.phoneNumber(phoneNumber)
@@ -0,0 +1,211 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker of one SMS gateway. Opens when the failure rate or the slow call rate over a
+ * rolling time window reaches its threshold, rejects all calls while open and lets a few trial
+ * calls through once the open period is over (half-open) to decide whether to close again.
+ * Only transient failures count, a rejected phone number says nothing about the gateway's health.
+ */
+public class CircuitBreaker {
+
+	private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * Returned by tryAcquire() for a rejected call.
+	 */
+	public static final long REJECTED = -1;
+
+	private final String name;
+	private final CircuitBreakerSettings settings;
+	private final LongSupplier nanoTime;
+	private final long bucketNanos;
+	private final Bucket[] buckets;
+	private final AtomicInteger halfOpenPermits = new AtomicInteger();
+
+	// state and generation change together, every transition starts a new generation
+	private volatile Phase phase = new Phase(State.CLOSED, 0);
+	private volatile long openUntil;
+
+	// outcomes of the trial calls while half-open, guarded by this
+	private int trialCalls;
+	private int trialFailures;
+	private int trialSlowCalls;
+
+	CircuitBreaker(String name, CircuitBreakerSettings settings) {
+		this(name, settings, System::nanoTime);
+	}
+
+	CircuitBreaker(String name, CircuitBreakerSettings settings, LongSupplier nanoTime) {
+		this.name = name;
+		this.settings = settings;
+		this.nanoTime = nanoTime;
+		this.buckets = new Bucket[settings.windowBuckets()];
+		this.bucketNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(settings.windowMillis()) / buckets.length, 1);
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new Bucket();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public State getState() {
+		return phase.state();
+	}
+
+	/**
+	 * Whether a call would currently be let through, without taking a trial permit.
+	 */
+	public boolean isCallPermitted() {
+		return switch (phase.state()) {
+			case CLOSED -> true;
+			case OPEN -> nanoTime.getAsLong() - openUntil >= 0;
+			case HALF_OPEN -> halfOpenPermits.get() > 0;
+		};
+	}
+
+	/**
+	 * Takes the permission for one call. Returns the permit to hand to onResult() once the call is done,
+	 * or REJECTED.
+	 */
+	public long tryAcquire() {
+		Phase current = phase;
+		if (current.state() == State.CLOSED) {
+			return current.generation();
+		}
+		if (current.state() == State.OPEN) {
+			if (nanoTime.getAsLong() - openUntil < 0) {
+				SmsMetrics.circuitRejected(name);
+				return REJECTED;
+			}
+			halfOpen();
+		}
+		if (halfOpenPermits.getAndUpdate(permits -> Math.max(permits - 1, 0)) > 0) {
+			// read after taking the permit, so it is never attributed to an earlier trial round
+			return phase.generation();
+		}
+		SmsMetrics.circuitRejected(name);
+		return REJECTED;
+	}
+
+	/**
+	 * Records the outcome of a permitted call, error is null on success. Only counts if the breaker is still in
+	 * the state the call started in: a late result of a call started while closed is no trial call.
+	 */
+	public void onResult(long permit, long durationNanos, Throwable error) {
+		boolean failure = error != null && RetryPolicy.isRetryable(error);
+		boolean slow = durationNanos >= settings.slowCallNanos();
+		synchronized (this) {
+			Phase current = phase;
+			if (current.generation() != permit) {
+				return;
+			}
+			switch (current.state()) {
+				case OPEN -> {
+					// calls are only permitted while closed or half-open
+				}
+				case HALF_OPEN -> {
+					trialCalls++;
+					trialFailures += failure ? 1 : 0;
+					trialSlowCalls += slow ? 1 : 0;
+					if (settings.isExceeded(trialCalls, trialFailures, trialSlowCalls)) {
+						open();
+					} else if (trialCalls >= settings.halfOpenCalls()) {
+						close();
+					}
+				}
+				case CLOSED -> {
+					long now = nanoTime.getAsLong();
+					long epoch = Math.floorDiv(now, bucketNanos);
+					Bucket bucket = buckets[Math.floorMod(epoch, buckets.length)];
+					if (bucket.epoch != epoch) {
+						bucket.reset(epoch);
+					}
+					bucket.calls++;
+					bucket.failures += failure ? 1 : 0;
+					bucket.slowCalls += slow ? 1 : 0;
+
+					int calls = 0;
+					int failures = 0;
+					int slowCalls = 0;
+					for (Bucket candidate : buckets) {
+						if (epoch - candidate.epoch < buckets.length) {
+							calls += candidate.calls;
+							failures += candidate.failures;
+							slowCalls += candidate.slowCalls;
+						}
+					}
+					if (calls >= settings.minimumCalls() && settings.isExceeded(calls, failures, slowCalls)) {
+						open();
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized void halfOpen() {
+		if (phase.state() != State.OPEN) {
+			return;
+		}
+		trialCalls = 0;
+		trialFailures = 0;
+		trialSlowCalls = 0;
+		halfOpenPermits.set(settings.halfOpenCalls());
+		transition(State.HALF_OPEN);
+	}
+
+	// callers hold the lock
+	private void open() {
+		openUntil = nanoTime.getAsLong() + TimeUnit.MILLISECONDS.toNanos(settings.openMillis());
+		halfOpenPermits.set(0);
+		transition(State.OPEN);
+	}
+
+	// callers hold the lock
+	private void close() {
+		for (Bucket bucket : buckets) {
+			bucket.reset(Long.MIN_VALUE);
+		}
+		transition(State.CLOSED);
+	}
+
+	private void transition(State target) {
+		if (target == State.OPEN) {
+			log.warnf("Circuit breaker of SMS gateway %s opened for %d ms", name, settings.openMillis());
+		} else {
+			log.infof("Circuit breaker of SMS gateway %s is %s", name, target);
+		}
+		phase = new Phase(target, phase.generation() + 1);
+		SmsMetrics.circuitTransition(name, target.name().toLowerCase());
+	}
+
+	private record Phase(State state, long generation) {
+	}
+
+	private static class Bucket {
+		long epoch = Long.MIN_VALUE;
+		int calls;
+		int failures;
+		int slowCalls;
+
+		void reset(long epoch) {
+			this.epoch = epoch;
+			calls = 0;
+			failures = 0;
+			slowCalls = 0;
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.keycloak.Config;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thresholds of the circuit breakers, a rate of 0 disables that criterion.
+ */
+record CircuitBreakerSettings(int failureRate, int slowCallRate, long slowCallNanos, int minimumCalls,
+		long windowMillis, int windowBuckets, long openMillis, int halfOpenCalls) {
+
+	static CircuitBreakerSettings of(Config.Scope config) {
+		return new CircuitBreakerSettings(
+			config.getInt("circuitBreakerFailureRate", 0),
+			config.getInt("circuitBreakerSlowCallRate", 0),
+			TimeUnit.MILLISECONDS.toNanos(config.getLong("circuitBreakerSlowCallDuration", 3_000L)),
+			Math.max(config.getInt("circuitBreakerMinimumCalls", 20), 1),
+			Math.max(config.getLong("circuitBreakerWindow", 10_000L), 1),
+			10,
+			Math.max(config.getLong("circuitBreakerOpenDuration", 30_000L), 1),
+			Math.max(config.getInt("circuitBreakerHalfOpenCalls", 3), 1));
+	}
+
+	boolean isEnabled() {
+		return failureRate > 0 || slowCallRate > 0;
+	}
+
+	boolean isExceeded(int calls, int failures, int slowCalls) {
+		return failureRate > 0 && failures * 100L >= (long) failureRate * calls
+			|| slowCallRate > 0 && slowCalls * 100L >= (long) slowCallRate * calls;
+	}
+
+}
@@ -0,0 +1,40 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.keycloak.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds one circuit breaker per gateway, shared by all authenticator configurations sending through it.
+ */
+public class CircuitBreakers {
+
+	private final CircuitBreakerSettings settings;
+	private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	public CircuitBreakers(Config.Scope config) {
+		this.settings = CircuitBreakerSettings.of(config);
+	}
+
+	public boolean isEnabled() {
+		return settings.isEnabled();
+	}
+
+	public CircuitBreaker get(String gateway) {
+		return breakers.computeIfAbsent(gateway, name -> {
+			CircuitBreaker breaker = new CircuitBreaker(name, settings);
+			SmsMetrics.circuitState(name, breaker, b -> b.getState().ordinal());
+			return breaker;
+		});
+	}
+
+	/**
+	 * Wraps the given gateway with its circuit breaker, or returns it as is if the breakers are disabled.
+	 */
+	SmsService wrap(SmsService smsService, String gateway) {
+		return isEnabled() ? new CircuitBreakingSmsService(smsService, get(gateway)) : smsService;
+	}
+
+}
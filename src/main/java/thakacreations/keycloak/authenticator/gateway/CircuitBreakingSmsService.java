@@ -0,0 +1,37 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+/**
+ * Fails fast while the circuit breaker of the wrapped gateway is open.
+ */
+class CircuitBreakingSmsService implements SmsService {
+
+	private final SmsService delegate;
+	private final CircuitBreaker breaker;
+
+	CircuitBreakingSmsService(SmsService delegate, CircuitBreaker breaker) {
+		this.delegate = delegate;
+		this.breaker = breaker;
+	}
+
+	@Override
+	public void send(String phoneNumber, String message) {
+		long permit = breaker.tryAcquire();
+		if (permit == CircuitBreaker.REJECTED) {
+			throw new SmsGatewayUnavailableException("SMS gateway " + breaker.getName() + " is currently unavailable");
+		}
+		long start = System.nanoTime();
+		try {
+			delegate.send(phoneNumber, message);
+			breaker.onResult(permit, System.nanoTime() - start, null);
+		} catch (RuntimeException e) {
+			breaker.onResult(permit, System.nanoTime() - start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return breaker.isCallPermitted() && delegate.isAvailable();
+	}
+
+}
@@ -0,0 +1,50 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Extracts the country calling code of an E.164 phone number, without a full numbering plan:
+ * zones 1 and 7 use a single digit, a fixed set of codes two digits and all others three.
+ */
+@UtilityClass
+class CountryPrefix {
+
+	static final String UNKNOWN = "";
+
+	private static final boolean[] TWO_DIGIT_CODES = new boolean[100];
+
+	static {
+		for (int code : new int[]{20, 27, 30, 31, 32, 33, 34, 36, 39, 40, 41, 43, 44, 45, 46, 47, 48, 49,
+			51, 52, 53, 54, 55, 56, 57, 58, 60, 61, 62, 63, 64, 65, 66, 81, 82, 84, 86, 90, 91, 92, 93, 94, 95, 98}) {
+			TWO_DIGIT_CODES[code] = true;
+		}
+	}
+
+	static String of(String phoneNumber) {
+		if (phoneNumber == null) {
+			return UNKNOWN;
+		}
+		int start = phoneNumber.startsWith("+") ? 1 : phoneNumber.startsWith("00") ? 2 : -1;
+		if (start < 0 || phoneNumber.length() < start + 3) {
+			return UNKNOWN;
+		}
+		for (int i = start; i < start + 3; i++) {
+			// ASCII digits only, Character.isDigit() also accepts e.g. Arabic-Indic digits
+			char c = phoneNumber.charAt(i);
+			if (c < '0' || c > '9') {
+				return UNKNOWN;
+			}
+		}
+		char first = phoneNumber.charAt(start);
+		int length;
+		if (first == '1' || first == '7') {
+			length = 1;
+		} else if (TWO_DIGIT_CODES[(first - '0') * 10 + phoneNumber.charAt(start + 1) - '0']) {
+			length = 2;
+		} else {
+			length = 3;
+		}
+		return phoneNumber.substring(start, start + length);
+	}
+
+}
@@ -0,0 +1,111 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.keycloak.Config;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hedged sends of the routing gateway: when the primary gateway has not answered within the given
+ * percentile of its recent latencies, the SMS is sent through the next gateway as well and the first
+ * acknowledgement wins. Hedging is disabled with a percentile of 0 (the default).
+ * The hedges are paid from a budget every send adds a fraction of a hedge to, so they never exceed
+ * the configured share of all sends.
+ */
+public class HedgingPolicy {
+
+	// the budget is kept in thousandths of a hedge
+	private static final long HEDGE_COST = 1_000;
+	// hedges that may be saved up during quiet periods
+	private static final long MAX_BUDGET = 10 * HEDGE_COST;
+
+	private final int percentile;
+	private final long minDelayNanos;
+	private final long budgetPerSend;
+	private final AtomicLong budget = new AtomicLong(MAX_BUDGET);
+	private final ThreadPoolExecutor executor;
+
+	public HedgingPolicy(Config.Scope config) {
+		this(config.getInt("hedgePercentile", 0), config.getLong("hedgeMinDelay", 50L),
+			config.getInt("hedgeMaxRate", 10), config.getInt("hedgeThreads", 16));
+	}
+
+	public HedgingPolicy(int percentile, long minDelayMillis, int maxRatePercent, int threads) {
+		this.percentile = Math.min(Math.max(percentile, 0), 100);
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minDelayMillis, 0));
+		this.budgetPerSend = HEDGE_COST * Math.min(Math.max(maxRatePercent, 0), 100) / 100;
+		if (this.percentile > 0) {
+			AtomicInteger counter = new AtomicInteger();
+			ThreadFactory threadFactory = runnable -> {
+				Thread thread = new Thread(runnable, "sms-hedge-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+			// no queue, a send that finds no idle thread is sent without hedging
+			executor = new ThreadPoolExecutor(0, Math.max(threads, 2), 60, TimeUnit.SECONDS,
+				new SynchronousQueue<>(), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		} else {
+			executor = null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return percentile > 0;
+	}
+
+	int getPercentile() {
+		return percentile;
+	}
+
+	/**
+	 * Returns the time to wait for the primary gateway before hedging, given its latency percentile.
+	 */
+	long delayNanos(long percentileNanos) {
+		return Math.max(percentileNanos, minDelayNanos);
+	}
+
+	/**
+	 * Called once per send, earns the fraction of a hedge the configured rate allows.
+	 */
+	void onSend() {
+		budget.getAndUpdate(current -> Math.min(current + budgetPerSend, MAX_BUDGET));
+	}
+
+	/**
+	 * Spends one hedge of the budget, false if it is used up.
+	 */
+	boolean tryHedge() {
+		long current;
+		do {
+			current = budget.get();
+			if (current < HEDGE_COST) {
+				return false;
+			}
+		} while (!budget.compareAndSet(current, current - HEDGE_COST));
+		return true;
+	}
+
+	/**
+	 * Runs the send on a hedging thread, returns null if all of them are busy.
+	 */
+	CompletableFuture<Void> submit(Runnable send) {
+		try {
+			return CompletableFuture.runAsync(send, executor);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.SmsConstants;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Generic HTTP SMS gateway: POSTs {"to": ..., "from": ..., "text": ...} as JSON to the configured URL,
+ * optionally with an Authorization header. Any 2xx status counts as accepted.
+ */
+public class HttpSmsService implements SmsService {
+
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+	private final URI uri;
+	private final String authorization;
+	private final String senderId;
+
+	HttpSmsService(Map<String, String> config) {
+		String url = config.get(SmsConstants.HTTP_URL);
+		if (url == null || url.isBlank()) {
+			throw new IllegalArgumentException("The http gateway requires the " + SmsConstants.HTTP_URL + " setting");
+		}
+		this.uri = URI.create(url.trim());
+		this.authorization = config.get(SmsConstants.HTTP_AUTHORIZATION);
+		this.senderId = config.get(SmsConstants.SENDER_ID);
+	}
+
+	URI getUri() {
+		return uri;
+	}
+
+	@Override
+	public void send(String phoneNumber, String message) {
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+			.timeout(REQUEST_TIMEOUT)
+			.header("Content-Type", "application/json")
+			.POST(HttpRequest.BodyPublishers.ofByteArray(body(phoneNumber, message)));
+		if (authorization != null && !authorization.isBlank()) {
+			request.header("Authorization", authorization);
+		}
+
+		HttpResponse<Void> response;
+		try {
+			response = Client.INSTANCE.send(request.build(), HttpResponse.BodyHandlers.discarding());
+		} catch (IOException e) {
+			throw new UncheckedIOException("SMS gateway " + uri.getHost() + " is not reachable", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sending the SMS", e);
+		}
+		if (response.statusCode() / 100 != 2) {
+			throw new SmsGatewayException("SMS gateway " + uri.getHost() + " answered with status " + response.statusCode(), response.statusCode());
+		}
+	}
+
+	private byte[] body(String phoneNumber, String message) {
+		try {
+			return JsonSerialization.writeValueAsBytes(Map.of("to", phoneNumber, "from", senderId != null ? senderId : "", "text", message));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * One client with its connection pool for all HTTP gateways, created on first use.
+	 */
+	private static class Client {
+		static final HttpClient INSTANCE = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(2))
+			.build();
+	}
+
+}
@@ -0,0 +1,35 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+
+/**
+ * Records latency and errors of the wrapped gateway as keycloak.sms.send and keycloak.sms.send.errors.
+ */
+class MeteredSmsService implements SmsService {
+
+	private final SmsService delegate;
+	private final String gateway;
+
+	MeteredSmsService(SmsService delegate, String gateway) {
+		this.delegate = delegate;
+		this.gateway = gateway;
+	}
+
+	@Override
+	public void send(String phoneNumber, String message) {
+		long start = System.nanoTime();
+		try {
+			delegate.send(phoneNumber, message);
+			SmsMetrics.smsSent(gateway, System.nanoTime() - start, null);
+		} catch (RuntimeException e) {
+			SmsMetrics.smsSent(gateway, System.nanoTime() - start, e);
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return delegate.isAvailable();
+	}
+
+}
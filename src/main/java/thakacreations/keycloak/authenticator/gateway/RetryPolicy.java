@@ -0,0 +1,105 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.keycloak.Config;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry settings of the SMS gateway calls, retries are disabled with a single attempt (the default).
+ * Only transient failures are retried: throttling, server errors and network errors.
+ */
+public class RetryPolicy {
+
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long maxDurationMillis;
+	private final long maxSyncDurationMillis;
+
+	public RetryPolicy(Config.Scope config) {
+		this(config.getInt("retryMaxAttempts", 1), config.getLong("retryBaseDelay", 200L),
+			config.getLong("retryMaxDelay", 5_000L), config.getLong("retryMaxDuration", 30_000L),
+			config.getLong("retryMaxSyncDuration", 1_000L));
+	}
+
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long maxDurationMillis,
+		long maxSyncDurationMillis) {
+		this.maxAttempts = Math.max(maxAttempts, 1);
+		this.baseDelayMillis = Math.max(baseDelayMillis, 1);
+		this.maxDelayMillis = Math.max(maxDelayMillis, this.baseDelayMillis);
+		this.maxDurationMillis = maxDurationMillis;
+		this.maxSyncDurationMillis = Math.max(maxSyncDurationMillis, 0);
+	}
+
+	public boolean isEnabled() {
+		return maxAttempts > 1;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Time budget of all attempts of one SMS: half of the code's lifetime, a code arriving later is of little use,
+	 * capped by the configured maximum.
+	 */
+	public long deadlineMillis(int ttlSeconds) {
+		long budget = ttlSeconds * 1000L / 2;
+		return maxDurationMillis > 0 ? Math.min(budget, maxDurationMillis) : budget;
+	}
+
+	/**
+	 * Time budget of all attempts of an SMS sent on the request thread, which sleeps between the attempts.
+	 * Kept small, 0 disables retries on the request thread.
+	 */
+	public long syncDeadlineMillis(int ttlSeconds) {
+		return Math.min(deadlineMillis(ttlSeconds), maxSyncDurationMillis);
+	}
+
+	/**
+	 * Exponential backoff with full jitter, so clients throttled together do not retry in lockstep.
+	 */
+	public long delayMillis(int attempt) {
+		long ceiling = baseDelayMillis << Math.min(attempt - 1, 20);
+		return ThreadLocalRandom.current().nextLong(Math.min(ceiling, maxDelayMillis) + 1);
+	}
+
+	public static boolean isRetryable(Throwable error) {
+		Throwable cause = unwrap(error);
+		if (cause instanceof SdkServiceException e) {
+			return e.isThrottlingException() || e.statusCode() == 429 || e.statusCode() >= 500;
+		}
+		if (cause instanceof SmsGatewayException e) {
+			return e.isTransient();
+		}
+		if (cause instanceof ApiCallTimeoutException) {
+			// the SDK's overall budget is used up
+			return false;
+		}
+		if (cause instanceof ApiCallAttemptTimeoutException) {
+			return true;
+		}
+		if (cause instanceof SdkClientException) {
+			// e.g. missing credentials are permanent, connection failures are not
+			return cause.getCause() instanceof IOException;
+		}
+		return cause instanceof IOException || cause instanceof UncheckedIOException;
+	}
+
+	static Throwable unwrap(Throwable error) {
+		Throwable cause = error;
+		while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause;
+	}
+
+}
@@ -0,0 +1,125 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Retries transient failures of the wrapped gateway with jittered exponential backoff
+ * until the attempts or the deadline are used up.
+ * Asynchronous sends wait for the next attempt on the dispatcher's timer instead of blocking a thread,
+ * every attempt is handed to the wrapped service again, i.e. to the dispatcher when async dispatch is enabled.
+ * Synchronous sends sleep on the request thread, so they only retry within the small synchronous deadline.
+ */
+class RetryingSmsService implements SmsService {
+
+	private static final Logger log = Logger.getLogger(RetryingSmsService.class);
+
+	private final SmsService delegate;
+	private final RetryPolicy policy;
+	private final long deadlineNanos;
+	private final long syncDeadlineNanos;
+	// null retries no asynchronous send
+	private final ScheduledExecutorService scheduler;
+	private final LongSupplier nanoTime;
+
+	RetryingSmsService(SmsService delegate, RetryPolicy policy, long deadlineMillis, long syncDeadlineMillis,
+		ScheduledExecutorService scheduler) {
+		this(delegate, policy, deadlineMillis, syncDeadlineMillis, scheduler, System::nanoTime);
+	}
+
+	RetryingSmsService(SmsService delegate, RetryPolicy policy, long deadlineMillis, long syncDeadlineMillis,
+		ScheduledExecutorService scheduler, LongSupplier nanoTime) {
+		this.delegate = delegate;
+		this.policy = policy;
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		this.syncDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(syncDeadlineMillis);
+		this.scheduler = scheduler;
+		this.nanoTime = nanoTime;
+	}
+
+	@Override
+	public void send(String phoneNumber, String message) {
+		long deadline = nanoTime.getAsLong() + syncDeadlineNanos;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				delegate.send(phoneNumber, message);
+				return;
+			} catch (RuntimeException e) {
+				long delay = nextDelay(attempt, deadline, e);
+				if (delay < 0) {
+					throw e;
+				}
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	@Override
+	public CompletionStage<Void> sendAsync(String phoneNumber, String message) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		attempt(phoneNumber, message, 1, nanoTime.getAsLong() + deadlineNanos, result);
+		return result;
+	}
+
+	private void attempt(String phoneNumber, String message, int attempt, long deadline, CompletableFuture<Void> result) {
+		CompletionStage<Void> stage;
+		try {
+			stage = delegate.sendAsync(phoneNumber, message);
+		} catch (RuntimeException e) {
+			stage = CompletableFuture.failedFuture(e);
+		}
+		stage.whenComplete((ignored, failure) -> {
+			if (failure == null) {
+				result.complete(null);
+				return;
+			}
+			Throwable error = RetryPolicy.unwrap(failure);
+			long delay = scheduler != null ? nextDelay(attempt, deadline, error) : -1;
+			if (delay < 0) {
+				result.completeExceptionally(error);
+				return;
+			}
+			try {
+				scheduler.schedule(() -> attempt(phoneNumber, message, attempt + 1, deadline, result), delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// shutting down
+				result.completeExceptionally(error);
+			}
+		});
+	}
+
+	/**
+	 * Returns the backoff before the next attempt, or -1 if the failure must be given up on.
+	 */
+	long nextDelay(int attempt, long deadline, Throwable error) {
+		if (attempt >= policy.getMaxAttempts() || !RetryPolicy.isRetryable(error)) {
+			return -1;
+		}
+		long delay = policy.delayMillis(attempt);
+		if (nanoTime.getAsLong() + TimeUnit.MILLISECONDS.toNanos(delay) >= deadline) {
+			log.debugf("Giving up SMS send after %d attempts, deadline reached", attempt);
+			return -1;
+		}
+		log.debugf("Retrying SMS send in %d ms, attempt %d failed with %s", delay, attempt, error);
+		SmsMetrics.smsRetried(error);
+		return delay;
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return delegate.isAvailable();
+	}
+
+}
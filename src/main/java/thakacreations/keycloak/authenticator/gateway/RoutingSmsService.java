@@ -0,0 +1,316 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.jboss.logging.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends each SMS through the gateway currently performing best for the destination's country calling code
+ * and fails over to the next one on transient errors. Every gateway keeps a moving average (EWMA) of its
+ * latency and error rate per country code, a small share of the messages is sent through a different
+ * gateway to keep the averages of the others current.
+ * With a hedging policy, a send the best gateway is slow to answer is also sent through the second best.
+ */
+class RoutingSmsService implements SmsService {
+
+	private static final Logger log = Logger.getLogger(RoutingSmsService.class);
+
+	// weight of the latest sample in the moving averages
+	private static final double ALPHA = 0.2;
+	// an error rate of 10% doubles a gateway's score
+	private static final double ERROR_PENALTY = 10;
+	private static final double EXPLORATION_RATE = 0.05;
+	// country calling codes are a small set, the bound only guards against malformed numbers
+	private static final int MAX_PREFIXES = 1_000;
+
+	private final List<Route> routes;
+	private final Map<String, GatewayStats[]> stats = new ConcurrentHashMap<>();
+	// recent latencies of every gateway over all destinations, for the hedging delay
+	private final LatencyWindow[] latencies;
+	private final HedgingPolicy hedging;
+
+	/**
+	 * The hedging policy is optional, null disables hedged sends.
+	 */
+	RoutingSmsService(List<Route> routes, HedgingPolicy hedging) {
+		this.routes = List.copyOf(routes);
+		this.hedging = hedging;
+		this.latencies = new LatencyWindow[routes.size()];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyWindow(hedging != null ? hedging.getPercentile() : 0);
+		}
+	}
+
+	@Override
+	public void send(String phoneNumber, String message) {
+		GatewayStats[] prefixStats = stats(CountryPrefix.of(phoneNumber));
+		int[] order = rank(prefixStats);
+		boolean[] tried = new boolean[routes.size()];
+		if (hedging != null) {
+			hedging.onSend();
+		}
+		RuntimeException failure = null;
+		for (int position = 0; position < order.length; position++) {
+			int index = order[position];
+			if (tried[index] || !routes.get(index).service().isAvailable()) {
+				continue;
+			}
+			tried[index] = true;
+			try {
+				int hedge = hedging != null ? nextAvailable(order, position + 1, tried) : -1;
+				if (hedge >= 0) {
+					sendHedged(index, hedge, prefixStats, tried, phoneNumber, message);
+				} else {
+					attempt(index, prefixStats, phoneNumber, message);
+				}
+				return;
+			} catch (RuntimeException e) {
+				if (!isFailover(e)) {
+					// e.g. an invalid phone number, the other gateways are not going to accept it either
+					throw e;
+				}
+				log.debugf("SMS gateway %s failed with %s, failing over", routes.get(index).name(), e);
+				SmsMetrics.smsFailover(routes.get(index).name());
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		throw failure != null ? failure : new SmsGatewayUnavailableException("No SMS gateway is currently available");
+	}
+
+	/**
+	 * Sends through the primary gateway and, if it has not answered within its latency percentile, through the
+	 * hedge gateway as well. The first acknowledgement completes the send, the other one is only recorded in the
+	 * statistics: an SMS handed to a gateway cannot be recalled, at worst the user receives the same code twice.
+	 */
+	private void sendHedged(int primary, int hedge, GatewayStats[] prefixStats, boolean[] tried, String phoneNumber, String message) {
+		long percentileNanos = latencies[primary].percentile();
+		CompletableFuture<Void> first = percentileNanos >= 0
+			? hedging.submit(() -> attempt(primary, prefixStats, phoneNumber, message))
+			: null;
+		if (first == null) {
+			// too few samples for a meaningful delay or no hedging thread available
+			attempt(primary, prefixStats, phoneNumber, message);
+			return;
+		}
+		try {
+			first.get(hedging.delayNanos(percentileNanos), TimeUnit.NANOSECONDS);
+			return;
+		} catch (TimeoutException e) {
+			// slower than usual, hedge below
+		} catch (ExecutionException e) {
+			throw unwrap(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while sending the SMS", e);
+		}
+
+		CompletableFuture<Void> second = hedging.tryHedge()
+			? hedging.submit(() -> attempt(hedge, prefixStats, phoneNumber, message))
+			: null;
+		if (second == null) {
+			join(first);
+			return;
+		}
+		tried[hedge] = true;
+
+		// completed by the first success, or by the last failure if both fail
+		CompletableFuture<Boolean> winner = new CompletableFuture<>();
+		AtomicInteger failures = new AtomicInteger();
+		first.whenComplete((ignored, error) -> settle(winner, failures, error, false));
+		second.whenComplete((ignored, error) -> settle(winner, failures, error, true));
+		boolean hedgeWon = join(winner);
+		SmsMetrics.smsHedged(routes.get(hedge).name(), hedgeWon);
+	}
+
+	private static void settle(CompletableFuture<Boolean> winner, AtomicInteger failures, Throwable error, boolean hedge) {
+		if (error == null) {
+			winner.complete(hedge);
+		} else if (failures.incrementAndGet() == 2) {
+			winner.completeExceptionally(error);
+		}
+	}
+
+	private void attempt(int index, GatewayStats[] prefixStats, String phoneNumber, String message) {
+		long start = System.nanoTime();
+		try {
+			routes.get(index).service().send(phoneNumber, message);
+		} catch (RuntimeException e) {
+			prefixStats[index].record(System.nanoTime() - start, isFailover(e));
+			throw e;
+		}
+		long duration = System.nanoTime() - start;
+		prefixStats[index].record(duration, false);
+		latencies[index].record(duration);
+	}
+
+	private int nextAvailable(int[] order, int from, boolean[] tried) {
+		for (int position = from; position < order.length; position++) {
+			int index = order[position];
+			if (!tried[index] && routes.get(index).service().isAvailable()) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw unwrap(e.getCause());
+		}
+	}
+
+	private static RuntimeException unwrap(Throwable error) {
+		Throwable cause = RetryPolicy.unwrap(error);
+		return cause instanceof RuntimeException e ? e : new IllegalStateException(cause);
+	}
+
+	@Override
+	public boolean isAvailable() {
+		for (Route route : routes) {
+			if (route.service().isAvailable()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	List<Route> getRoutes() {
+		return routes;
+	}
+
+	/**
+	 * Returns the gateway indexes ordered by their score for the given country code, best first.
+	 */
+	int[] rank(GatewayStats[] prefixStats) {
+		int count = routes.size();
+		int[] order = new int[count];
+		double[] scores = new double[count];
+		for (int i = 0; i < count; i++) {
+			double score = prefixStats[i].score();
+			// insertion sort, there are only a handful of gateways
+			int j = i;
+			while (j > 0 && scores[j - 1] > score) {
+				scores[j] = scores[j - 1];
+				order[j] = order[j - 1];
+				j--;
+			}
+			scores[j] = score;
+			order[j] = i;
+		}
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (count > 1 && random.nextDouble() < EXPLORATION_RATE) {
+			int explored = 1 + random.nextInt(count - 1);
+			int first = order[0];
+			order[0] = order[explored];
+			order[explored] = first;
+		}
+		return order;
+	}
+
+	GatewayStats[] stats(String prefix) {
+		GatewayStats[] prefixStats = stats.get(prefix);
+		if (prefixStats == null) {
+			if (stats.size() >= MAX_PREFIXES) {
+				prefix = CountryPrefix.UNKNOWN;
+			}
+			prefixStats = stats.computeIfAbsent(prefix, key -> {
+				GatewayStats[] created = new GatewayStats[routes.size()];
+				for (int i = 0; i < created.length; i++) {
+					created[i] = new GatewayStats();
+				}
+				return created;
+			});
+		}
+		return prefixStats;
+	}
+
+	private static boolean isFailover(Throwable error) {
+		return error instanceof SmsGatewayUnavailableException || RetryPolicy.isRetryable(error);
+	}
+
+	record Route(String name, SmsService service) {
+	}
+
+	/**
+	 * The latest successful send durations of one gateway. The percentile is recomputed every few samples,
+	 * it is -1 until enough samples have been recorded.
+	 */
+	static class LatencyWindow {
+		private static final int SIZE = 256;
+		private static final int MIN_SAMPLES = 20;
+		private static final int RECOMPUTE_INTERVAL = 16;
+
+		private final int percentile;
+		private final long[] samples = new long[SIZE];
+		private int count;
+		private int next;
+		private int sinceRecompute;
+		private volatile long percentileNanos = -1;
+
+		LatencyWindow(int percentile) {
+			this.percentile = percentile;
+		}
+
+		synchronized void record(long durationNanos) {
+			if (percentile <= 0) {
+				return;
+			}
+			samples[next] = durationNanos;
+			next = (next + 1) % SIZE;
+			count = Math.min(count + 1, SIZE);
+			if (count >= MIN_SAMPLES && ++sinceRecompute >= RECOMPUTE_INTERVAL) {
+				sinceRecompute = 0;
+				long[] sorted = Arrays.copyOf(samples, count);
+				Arrays.sort(sorted);
+				percentileNanos = sorted[Math.max((int) Math.ceil(percentile / 100.0 * count) - 1, 0)];
+			}
+		}
+
+		long percentile() {
+			return percentileNanos;
+		}
+	}
+
+	/**
+	 * Moving averages of one gateway for one country code. A gateway without samples scores 0
+	 * and is therefore tried before the others.
+	 */
+	static class GatewayStats {
+		private volatile double latencyNanos;
+		private volatile double errorRate;
+		private boolean sampled;
+
+		synchronized void record(long durationNanos, boolean error) {
+			if (!sampled) {
+				sampled = true;
+				latencyNanos = durationNanos;
+				errorRate = error ? 1 : 0;
+				return;
+			}
+			latencyNanos += ALPHA * (durationNanos - latencyNanos);
+			errorRate += ALPHA * ((error ? 1 : 0) - errorRate);
+		}
+
+		double score() {
+			return latencyNanos * (1 + ERROR_PENALTY * errorRate);
+		}
+	}
+
+}
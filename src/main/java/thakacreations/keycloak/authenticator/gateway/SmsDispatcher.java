@@ -0,0 +1,79 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue and worker pool sending the SMS off the request threads,
+ * with a timer thread of its own for the retries waiting for their next attempt.
+ */
+public class SmsDispatcher {
+
+	private final ThreadPoolExecutor executor;
+	private final ScheduledExecutorService scheduler;
+
+	public SmsDispatcher(int threads, int queueSize) {
+		AtomicInteger counter = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "sms-dispatch-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(queueSize), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sms-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Timer of the retries, a retry falling back to a blocking send when the queue is full blocks only this
+	 * thread and not a shared pool.
+	 */
+	ScheduledExecutorService scheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns a view of the given service whose sendAsync() is executed by the dispatcher workers.
+	 */
+	public SmsService wrap(SmsService smsService) {
+		return new AsyncSmsService(smsService, this);
+	}
+
+	/**
+	 * Queues the send, returns null if the dispatcher is saturated.
+	 */
+	CompletableFuture<Void> dispatch(SmsService smsService, String phoneNumber, String message) {
+		try {
+			return CompletableFuture.runAsync(() -> smsService.send(phoneNumber, message), executor);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	public void shutdown() {
+		// retries still waiting are dropped, the outbox sends them again after a restart
+		scheduler.shutdownNow();
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+/**
+ * Thrown when an SMS gateway answered a send with an error status.
+ */
+public class SmsGatewayException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+
+	public SmsGatewayException(String message, int statusCode) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * Throttling and server errors are worth another attempt, client errors are not.
+	 */
+	public boolean isTransient() {
+		return statusCode == 429 || statusCode >= 500;
+	}
+
+}
@@ -0,0 +1,14 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+/**
+ * Thrown instead of calling a gateway whose circuit breaker is open.
+ */
+public class SmsGatewayUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public SmsGatewayUnavailableException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,160 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.keycloak.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Token-bucket limits in front of the SMS gateway: per phone number, per user, per realm and
+ * one global cap, e.g. matched to the SNS account's SMS throughput quota.
+ * A limit of 0 disables it, all limits are disabled by default.
+ */
+public class SmsRateLimiter {
+
+	// idle buckets are dropped periodically, and right away once a map grows beyond MAX_BUCKETS
+	private static final int MAX_BUCKETS = 100_000;
+	private static final long EVICTION_INTERVAL_SECONDS = 10;
+
+	private final Limit phoneLimit;
+	private final Limit userLimit;
+	private final Limit realmLimit;
+	private final TokenBucket global;
+
+	private final Map<String, TokenBucket> phoneBuckets = new ConcurrentHashMap<>();
+	private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+	private final Map<String, TokenBucket> realmBuckets = new ConcurrentHashMap<>();
+
+	// sweeps the maps off the request threads, null without per-key limits
+	private final ScheduledExecutorService evictor;
+	private final AtomicBoolean evictionRequested = new AtomicBoolean();
+
+	public SmsRateLimiter(Config.Scope config) {
+		phoneLimit = Limit.perMinute(config.getInt("rateLimitPhonePerMinute", 0), config.getInt("rateLimitPhoneBurst", 3));
+		userLimit = Limit.perMinute(config.getInt("rateLimitUserPerMinute", 0), config.getInt("rateLimitUserBurst", 3));
+		realmLimit = Limit.perMinute(config.getInt("rateLimitRealmPerMinute", 0), config.getInt("rateLimitRealmBurst", 100));
+		Limit globalLimit = Limit.perSecond(config.getInt("rateLimitGlobalPerSecond", 0), config.getInt("rateLimitGlobalBurst", 20));
+		global = globalLimit != null ? globalLimit.newBucket(System.nanoTime()) : null;
+		if (phoneLimit != null || userLimit != null || realmLimit != null) {
+			evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "sms-rate-limit-evictor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+		} else {
+			evictor = null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return phoneLimit != null || userLimit != null || realmLimit != null || global != null;
+	}
+
+	/**
+	 * Takes a token from every enabled limit, the most specific one first.
+	 * Returns 0 if the SMS may be sent, otherwise the milliseconds until it may be retried.
+	 * Tokens already taken are given back when a later limit rejects.
+	 */
+	public long tryAcquire(String realmId, String userId, String phoneNumber) {
+		long now = System.nanoTime();
+		TokenBucket phone = bucket(phoneBuckets, phoneLimit, phoneNumber, now);
+		TokenBucket user = bucket(userBuckets, userLimit, realmId + ":" + userId, now);
+		TokenBucket realm = bucket(realmBuckets, realmLimit, realmId, now);
+		TokenBucket[] buckets = {phone, user, realm, global};
+
+		for (int i = 0; i < buckets.length; i++) {
+			if (buckets[i] == null) {
+				continue;
+			}
+			long wait = buckets[i].tryAcquire(now);
+			if (wait > 0) {
+				for (int j = 0; j < i; j++) {
+					if (buckets[j] != null) {
+						buckets[j].release();
+					}
+				}
+				return Math.max(TimeUnit.NANOSECONDS.toMillis(wait), 1);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gives back the tokens taken by a successful tryAcquire(), e.g. because the code was not admitted and no SMS
+	 * has been sent.
+	 */
+	public void release(String realmId, String userId, String phoneNumber) {
+		release(phoneBuckets, phoneNumber);
+		release(userBuckets, realmId + ":" + userId);
+		release(realmBuckets, realmId);
+		if (global != null) {
+			global.release();
+		}
+	}
+
+	public void close() {
+		if (evictor != null) {
+			evictor.shutdownNow();
+		}
+	}
+
+	private TokenBucket bucket(Map<String, TokenBucket> buckets, Limit limit, String key, long now) {
+		if (limit == null || key == null) {
+			return null;
+		}
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null) {
+			if (buckets.size() >= MAX_BUCKETS && evictionRequested.compareAndSet(false, true)) {
+				// the map may exceed the bound until the evictor has swept it, the request only pays for the insert
+				try {
+					evictor.execute(this::evictIdle);
+				} catch (RejectedExecutionException e) {
+					// shut down
+				}
+			}
+			bucket = buckets.computeIfAbsent(key, k -> limit.newBucket(now));
+		}
+		return bucket;
+	}
+
+	private static void release(Map<String, TokenBucket> buckets, String key) {
+		// a bucket evicted meanwhile was full again, there is nothing to give back
+		TokenBucket bucket = key != null ? buckets.get(key) : null;
+		if (bucket != null) {
+			bucket.release();
+		}
+	}
+
+	/**
+	 * Drops the buckets that are full again, they behave exactly like a newly created one.
+	 */
+	private void evictIdle() {
+		evictionRequested.set(false);
+		long now = System.nanoTime();
+		phoneBuckets.values().removeIf(bucket -> bucket.isIdle(now));
+		userBuckets.values().removeIf(bucket -> bucket.isIdle(now));
+		realmBuckets.values().removeIf(bucket -> bucket.isIdle(now));
+	}
+
+	private record Limit(long emissionIntervalNanos, int burst) {
+
+		static Limit perMinute(int rate, int burst) {
+			return rate > 0 ? new Limit(TimeUnit.MINUTES.toNanos(1) / rate, Math.max(burst, 1)) : null;
+		}
+
+		static Limit perSecond(int rate, int burst) {
+			return rate > 0 ? new Limit(TimeUnit.SECONDS.toNanos(1) / rate, Math.max(burst, 1)) : null;
+		}
+
+		TokenBucket newBucket(long now) {
+			return new TokenBucket(emissionIntervalNanos, burst, now);
+		}
+	}
+
+}
@@ -1,6 +1,7 @@
 package thakacreations.keycloak.authenticator.gateway;
 
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * @author Abdul Nelfrank, https://thaka-creations.github.io/portfolio/, @abdulnelfrank
@@ -9,4 +10,24 @@ public interface SmsService {
 
 	void send(String phoneNumber, String message);
 
+	/**
+	 * Sends the message without blocking the caller, if the implementation supports it.
+	 * By default the message is sent synchronously and an already completed stage is returned.
+	 */
+	default CompletionStage<Void> sendAsync(String phoneNumber, String message) {
+		try {
+			send(phoneNumber, message);
+			return CompletableFuture.completedFuture(null);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	/**
+	 * Whether a send can currently be attempted at all, false e.g. while the gateway's circuit breaker is open.
+	 */
+	default boolean isAvailable() {
+		return true;
+	}
+
 }
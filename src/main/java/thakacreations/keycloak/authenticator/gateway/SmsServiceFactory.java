@@ -3,6 +3,8 @@ package thakacreations.keycloak.authenticator.gateway;
 import thakacreations.keycloak.authenticator.SmsConstants;
 import org.jboss.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -12,13 +14,55 @@ public class SmsServiceFactory {
 
 	private static final Logger log = Logger.getLogger(SmsServiceFactory.class);
 
-	public static SmsService get(Map<String, String> config) {
-		if (Boolean.parseBoolean(config.getOrDefault(SmsConstants.SIMULATION_MODE, "false"))) {
-			return (phoneNumber, message) ->
-				log.warnf("***** SIMULATION MODE ***** Would send SMS to %s with text: %s", phoneNumber, message);
-		} else {
-			return new AwsSmsService(config);
+	private static final SmsService SIMULATION = (phoneNumber, message) ->
+		log.warnf("***** SIMULATION MODE ***** Would send SMS to %s with text: %s", phoneNumber, message);
+
+	public static final String GATEWAY_SNS = "sns";
+	public static final String GATEWAY_HTTP = "http";
+
+	public static SmsService get(Map<String, String> config, SnsClients snsClients, CircuitBreakers circuitBreakers,
+		HedgingPolicy hedgingPolicy) {
+		if (isSimulation(config)) {
+			return SIMULATION;
+		}
+		List<RoutingSmsService.Route> routes = new ArrayList<>();
+		for (String gateway : config.getOrDefault(SmsConstants.GATEWAYS, GATEWAY_SNS).split(",")) {
+			gateway = gateway.trim().toLowerCase();
+			if (gateway.isEmpty()) {
+				continue;
+			}
+			routes.add(switch (gateway) {
+				case GATEWAY_SNS -> {
+					String region = config.get(SmsConstants.REGION);
+					String name = region != null && !region.isBlank() ? GATEWAY_SNS + ":" + region : GATEWAY_SNS;
+					yield route(name, new AwsSmsService(config, snsClients.get(region)), circuitBreakers);
+				}
+				case GATEWAY_HTTP -> {
+					HttpSmsService http = new HttpSmsService(config);
+					yield route(GATEWAY_HTTP + ":" + http.getUri().getHost(), http, circuitBreakers);
+				}
+				default -> throw new IllegalArgumentException("Unknown SMS gateway " + gateway);
+			});
 		}
+		if (routes.isEmpty()) {
+			throw new IllegalArgumentException("No SMS gateway configured");
+		}
+		return routes.size() == 1 ? routes.get(0).service() : new RoutingSmsService(routes, hedgingPolicy);
+	}
+
+	private static RoutingSmsService.Route route(String name, SmsService gateway, CircuitBreakers circuitBreakers) {
+		SmsService smsService = new MeteredSmsService(gateway, name);
+		if (circuitBreakers != null) {
+			smsService = circuitBreakers.wrap(smsService, name);
+		}
+		return new RoutingSmsService.Route(name, smsService);
+	}
+
+	/**
+	 * Whether the configuration only logs the SMS, the default as long as simulation mode has not been switched off.
+	 */
+	public static boolean isSimulation(Map<String, String> config) {
+		return Boolean.parseBoolean(config.getOrDefault(SmsConstants.SIMULATION_MODE, "true"));
 	}
 
 }
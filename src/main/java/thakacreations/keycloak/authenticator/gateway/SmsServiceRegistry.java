@@ -0,0 +1,59 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.ConfigCache;
+import thakacreations.keycloak.authenticator.SmsConstants;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.Map;
+
+/**
+ * Memoizes the fully built gateway per authenticator configuration.
+ * An entry is rebuilt as soon as the configuration it was built from has been changed.
+ */
+public class SmsServiceRegistry {
+
+	private final ConfigCache<SmsService> services = new ConfigCache<>(this::create);
+	private final SmsDispatcher dispatcher;
+	private final SnsClients snsClients;
+	private final RetryPolicy retryPolicy;
+	private final CircuitBreakers circuitBreakers;
+	private final HedgingPolicy hedgingPolicy;
+
+	/**
+	 * The dispatcher, retry policy, circuit breakers and hedging policy are optional, null disables them.
+	 */
+	public SmsServiceRegistry(SmsDispatcher dispatcher, SnsClients snsClients, RetryPolicy retryPolicy, CircuitBreakers circuitBreakers,
+		HedgingPolicy hedgingPolicy) {
+		this.dispatcher = dispatcher;
+		this.snsClients = snsClients;
+		this.retryPolicy = retryPolicy;
+		this.circuitBreakers = circuitBreakers;
+		this.hedgingPolicy = hedgingPolicy;
+	}
+
+	/**
+	 * Whether the gateways send asynchronously through the dispatcher.
+	 */
+	public boolean isAsync() {
+		return dispatcher != null;
+	}
+
+	public SmsService get(AuthenticatorConfigModel config) {
+		return services.get(config);
+	}
+
+	private SmsService create(Map<String, String> configMap) {
+		SmsService smsService = SmsServiceFactory.get(configMap, snsClients, circuitBreakers, hedgingPolicy);
+		if (dispatcher != null) {
+			smsService = dispatcher.wrap(smsService);
+		}
+		if (retryPolicy != null && !SmsServiceFactory.isSimulation(configMap)) {
+			// outside of the dispatcher, so no worker is blocked while waiting for the next attempt
+			int ttl = Integer.parseInt(configMap.getOrDefault(SmsConstants.CODE_TTL, "300"));
+			smsService = new RetryingSmsService(smsService, retryPolicy, retryPolicy.deadlineMillis(ttl),
+				retryPolicy.syncDeadlineMillis(ttl), dispatcher != null ? dispatcher.scheduler() : null);
+		}
+		return smsService;
+	}
+
+}
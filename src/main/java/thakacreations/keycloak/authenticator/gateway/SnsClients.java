@@ -0,0 +1,176 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sns.SnsClient;
+import software.amazon.awssdk.services.sns.SnsClientBuilder;
+import software.amazon.awssdk.services.sns.model.SnsException;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds and holds the SNS clients, one per region, with a connection pool sized by the SPI options.
+ * All gateways of the same region share the client and thereby its pooled connections.
+ */
+public class SnsClients {
+
+	public static final String HTTP_CLIENT_APACHE = "apache";
+	public static final String HTTP_CLIENT_CRT = "crt";
+
+	private static final Logger log = Logger.getLogger(SnsClients.class);
+
+	// key used for the region resolved by the default region provider chain
+	private static final String DEFAULT_REGION = "";
+
+	private final String httpClient;
+	private final int maxConnections;
+	private final Duration connectionTtl;
+	private final Duration connectionAcquisitionTimeout;
+	private final Duration connectionTimeout;
+	private final Duration socketTimeout;
+	private final Duration apiCallTimeout;
+	private final Duration apiCallAttemptTimeout;
+	private final String defaultRegion;
+	private final boolean sdkRetries;
+
+	private final Map<String, SnsClient> clients = new ConcurrentHashMap<>();
+
+	private volatile boolean ready;
+
+	/**
+	 * The retry policy of the authenticator is optional, the SDK retries on its own without one.
+	 */
+	public SnsClients(Config.Scope config, RetryPolicy retryPolicy) {
+		httpClient = config.get("snsHttpClient", HTTP_CLIENT_APACHE);
+		maxConnections = config.getInt("snsMaxConnections", 50);
+		connectionTtl = millis(config.getLong("snsConnectionTtl", 60_000L));
+		connectionAcquisitionTimeout = millis(config.getLong("snsConnectionAcquisitionTimeout", 2_000L));
+		connectionTimeout = millis(config.getLong("snsConnectionTimeout", 2_000L));
+		socketTimeout = millis(config.getLong("snsSocketTimeout", 5_000L));
+		apiCallTimeout = millis(config.getLong("snsApiCallTimeout", 10_000L));
+		apiCallAttemptTimeout = millis(config.getLong("snsApiCallAttemptTimeout", 0L));
+		defaultRegion = config.get("snsRegion");
+		// the authenticator's own retries replace the SDK's, otherwise the attempts multiply
+		sdkRetries = retryPolicy == null || !retryPolicy.isEnabled();
+	}
+
+	/**
+	 * Returns the shared client for the given region, or for the server default region if it is empty.
+	 */
+	public SnsClient get(String region) {
+		String key = region != null && !region.isBlank() ? region : DEFAULT_REGION;
+		return clients.computeIfAbsent(key, this::build);
+	}
+
+	private SnsClient build(String region) {
+		ClientOverrideConfiguration.Builder overrides = ClientOverrideConfiguration.builder();
+		if (apiCallTimeout != null) {
+			overrides.apiCallTimeout(apiCallTimeout);
+		}
+		if (apiCallAttemptTimeout != null) {
+			overrides.apiCallAttemptTimeout(apiCallAttemptTimeout);
+		}
+		if (!sdkRetries) {
+			overrides.retryPolicy(software.amazon.awssdk.core.retry.RetryPolicy.none());
+		}
+
+		SnsClientBuilder builder = SnsClient.builder()
+			.httpClient(buildHttpClient())
+			.overrideConfiguration(overrides.build());
+		String resolvedRegion = !region.isEmpty() ? region : defaultRegion;
+		if (resolvedRegion != null && !resolvedRegion.isBlank()) {
+			builder.region(Region.of(resolvedRegion));
+		}
+		log.debugf("Building SNS client for region %s with %s HTTP client and %d max connections",
+			resolvedRegion != null ? resolvedRegion : "<default>", httpClient, maxConnections);
+		return builder.build();
+	}
+
+	private SdkHttpClient buildHttpClient() {
+		if (HTTP_CLIENT_CRT.equalsIgnoreCase(httpClient)) {
+			return CrtHttpClient.build(maxConnections, connectionTimeout, connectionTtl);
+		}
+		ApacheHttpClient.Builder builder = ApacheHttpClient.builder()
+			.maxConnections(maxConnections)
+			.tcpKeepAlive(true)
+			.useIdleConnectionReaper(true);
+		if (connectionTtl != null) {
+			builder.connectionTimeToLive(connectionTtl);
+		}
+		if (connectionAcquisitionTimeout != null) {
+			builder.connectionAcquisitionTimeout(connectionAcquisitionTimeout);
+		}
+		if (connectionTimeout != null) {
+			builder.connectionTimeout(connectionTimeout);
+		}
+		if (socketTimeout != null) {
+			builder.socketTimeout(socketTimeout);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Builds the client of the default region, resolves its credentials and opens a pooled connection,
+	 * so the first login does not pay for SDK class loading, the credential chain and the TLS handshake.
+	 */
+	public void warmUp() {
+		long start = System.currentTimeMillis();
+		SnsClient sns = get(null);
+		sns.serviceClientConfiguration().credentialsProvider().resolveIdentity().join();
+		try {
+			sns.getSMSAttributes(builder -> builder.attributes("DefaultSMSType"));
+		} catch (SnsException e) {
+			// e.g. not authorized for GetSMSAttributes, the connection has been established anyway
+			log.debugf("SNS warm-up call answered with %s", e.getMessage());
+		}
+		ready = true;
+		log.infof("SNS client warmed up in %d ms", System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Reports the warm-up state as gauge keycloak.sms.sns.client.ready (1 when warmed up).
+	 */
+	public void registerMetrics() {
+		SmsMetrics.gauge("sns.client.ready", "Whether the SNS client has been warmed up", this, snsClients -> snsClients.ready ? 1 : 0);
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public void close() {
+		clients.values().forEach(SnsClient::close);
+		clients.clear();
+	}
+
+	// 0 or less means the SDK default
+	private static Duration millis(Long value) {
+		return value != null && value > 0 ? Duration.ofMillis(value) : null;
+	}
+
+	/**
+	 * Kept separate so the optional CRT classes are only loaded when selected.
+	 */
+	private static class CrtHttpClient {
+		static SdkHttpClient build(int maxConnections, Duration connectionTimeout, Duration connectionMaxIdleTime) {
+			AwsCrtHttpClient.Builder builder = AwsCrtHttpClient.builder()
+				.maxConcurrency(maxConnections);
+			if (connectionTimeout != null) {
+				builder.connectionTimeout(connectionTimeout);
+			}
+			if (connectionMaxIdleTime != null) {
+				builder.connectionMaxIdleTime(connectionMaxIdleTime);
+			}
+			return builder.build();
+		}
+	}
+
+}
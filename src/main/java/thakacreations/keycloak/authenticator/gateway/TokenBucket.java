@@ -0,0 +1,53 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket in its GCRA form: the whole state is the theoretical arrival time
+ * of the next token, updated with a single CAS. A bucket allows bursts of up to capacity
+ * sends and refills at one token per emission interval.
+ */
+class TokenBucket {
+
+	private final long emissionIntervalNanos;
+	private final long burstToleranceNanos;
+	private final AtomicLong theoreticalArrival;
+
+	TokenBucket(long emissionIntervalNanos, int capacity, long now) {
+		this.emissionIntervalNanos = emissionIntervalNanos;
+		this.burstToleranceNanos = emissionIntervalNanos * (capacity - 1);
+		this.theoreticalArrival = new AtomicLong(now);
+	}
+
+	/**
+	 * Takes one token. Returns 0 if it was available, otherwise the nanos until it will be.
+	 */
+	long tryAcquire(long now) {
+		while (true) {
+			long arrival = theoreticalArrival.get();
+			long next = Math.max(arrival, now) + emissionIntervalNanos;
+			long wait = next - now - emissionIntervalNanos - burstToleranceNanos;
+			if (wait > 0) {
+				return wait;
+			}
+			if (theoreticalArrival.compareAndSet(arrival, next)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Gives back a token taken by tryAcquire(), e.g. because another limit rejected the send.
+	 */
+	void release() {
+		theoreticalArrival.addAndGet(-emissionIntervalNanos);
+	}
+
+	/**
+	 * Whether the bucket is full again, i.e. it carries no state worth keeping.
+	 */
+	boolean isIdle(long now) {
+		return theoreticalArrival.get() <= now;
+	}
+
+}
@@ -0,0 +1,220 @@
+package thakacreations.keycloak.authenticator.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.experimental.UtilityClass;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Meters of the SMS authenticator, registered with the global Micrometer registry
+ * which Keycloak exposes on its metrics endpoint when metrics are enabled.
+ */
+@UtilityClass
+public class SmsMetrics {
+
+	public static final String PREFIX = "keycloak.sms.";
+
+	public static final String FLOW_BROWSER = "browser";
+	public static final String FLOW_DIRECT_GRANT = "direct_grant";
+
+	public static final String OUTCOME_SUCCESS = "success";
+	public static final String OUTCOME_INVALID_OTP = "invalid_otp";
+	public static final String OUTCOME_OTP_EXPIRED = "otp_expired";
+	public static final String OUTCOME_NO_SESSION = "no_session";
+	public static final String OUTCOME_OTP_LOCKED = "otp_locked";
+
+	// tag of all per-realm meters, the realm id as the name can change
+	private static final String REALM_ID = "realm_id";
+
+	// the meters recorded per event, registered once per tag values instead of rebuilt on every event
+	private static final Map<Key, Meter> METERS = new ConcurrentHashMap<>();
+
+	public static MeterRegistry registry() {
+		return Metrics.globalRegistry;
+	}
+
+	public static <T> void gauge(String name, String description, T target, ToDoubleFunction<T> value) {
+		Gauge.builder(PREFIX + name, target, value)
+			.description(description)
+			.strongReference(true)
+			.register(registry());
+	}
+
+	public static <T> void otpStoreSize(String store, T target, ToDoubleFunction<T> size) {
+		Gauge.builder(PREFIX + "otp.store.size", target, size)
+			.description("OTP codes held by a node-local store")
+			.tag("store", store)
+			.strongReference(true)
+			.register(registry());
+	}
+
+	public static <T> void otpStoreRejections(String store, T target, ToDoubleFunction<T> rejections) {
+		FunctionCounter.builder(PREFIX + "otp.store.rejections", target, rejections)
+			.description("New OTP codes not admitted because the off-heap store was full")
+			.tag("store", store)
+			.register(registry());
+	}
+
+	public static <T> void otpPartitionGauge(String name, String description, String realmId, T target, ToDoubleFunction<T> value) {
+		Gauge.builder(PREFIX + "otp.partition." + name, target, value)
+			.description(description)
+			.tag(REALM_ID, realmId)
+			.strongReference(true)
+			.register(registry());
+	}
+
+	public static <T> void otpPartitionCounter(String name, String description, String realmId, T target, ToDoubleFunction<T> value) {
+		FunctionCounter.builder(PREFIX + "otp.partition." + name, target, value)
+			.description(description)
+			.tag(REALM_ID, realmId)
+			.register(registry());
+	}
+
+	/**
+	 * Removes all meters of a realm after the realm has been removed.
+	 */
+	public static void removeRealm(String realmId) {
+		METERS.keySet().removeIf(key -> key.hasRealm(realmId));
+		for (Meter meter : registry().getMeters()) {
+			if (meter.getId().getName().startsWith(PREFIX) && realmId.equals(meter.getId().getTag(REALM_ID))) {
+				registry().remove(meter);
+			}
+		}
+	}
+
+	public static void smsFailover(String gateway) {
+		counter("send.failovers", "SMS sends moved on to the next gateway after a failure",
+			"gateway", gateway).increment();
+	}
+
+	public static void smsHedged(String gateway, boolean hedgeWon) {
+		counter("send.hedges", "SMS sends hedged through a second gateway, by the gateway that answered first",
+			"gateway", gateway, "winner", hedgeWon ? "hedge" : "primary").increment();
+	}
+
+	public static <T> void circuitState(String gateway, T breaker, ToDoubleFunction<T> state) {
+		Gauge.builder(PREFIX + "circuit.state", breaker, state)
+			.description("State of the gateway's circuit breaker: 0 closed, 1 open, 2 half-open")
+			.tag("gateway", gateway)
+			.strongReference(true)
+			.register(registry());
+	}
+
+	public static void circuitTransition(String gateway, String state) {
+		counter("circuit.transitions", "State changes of the gateway's circuit breaker",
+			"gateway", gateway, "state", state).increment();
+	}
+
+	public static void circuitRejected(String gateway) {
+		counter("circuit.rejected", "SMS sends rejected by an open circuit breaker",
+			"gateway", gateway).increment();
+	}
+
+	public static String flow(boolean directGrant) {
+		return directGrant ? FLOW_DIRECT_GRANT : FLOW_BROWSER;
+	}
+
+	public static void otpIssued(String realmId, boolean directGrant) {
+		counter("otp.issued", "OTP codes issued",
+			REALM_ID, realmId, "flow", flow(directGrant)).increment();
+	}
+
+	public static void otpReused(String realmId, boolean directGrant) {
+		counter("otp.reused", "Requests answered with an already sent OTP code",
+			REALM_ID, realmId, "flow", flow(directGrant)).increment();
+	}
+
+	public static void otpValidated(String realmId, boolean directGrant, String outcome) {
+		counter("otp.validations", "OTP validations by outcome",
+			REALM_ID, realmId, "flow", flow(directGrant), "outcome", outcome).increment();
+	}
+
+	public static void smsRateLimited(String realmId, boolean directGrant) {
+		counter("rate_limited", "SMS sends rejected by the rate limiter",
+			REALM_ID, realmId, "flow", flow(directGrant)).increment();
+	}
+
+	public static void otpCleanup(String store, long durationNanos, int expired) {
+		Timer timer = (Timer) METERS.computeIfAbsent(new Key("otp.cleanup", "store", store), key -> Timer.builder(PREFIX + "otp.cleanup")
+			.description("Duration of the OTP expiry runs")
+			.tag("store", store)
+			.register(registry()));
+		timer.record(durationNanos, TimeUnit.NANOSECONDS);
+		if (expired > 0) {
+			counter("otp.expired", "OTP codes removed after their expiry",
+				"store", store).increment(expired);
+		}
+	}
+
+	public static void smsRetried(Throwable error) {
+		counter("send.retries", "SMS sends retried after a transient failure",
+			"exception", error.getClass().getSimpleName()).increment();
+	}
+
+	/**
+	 * Records one SMS send of the given gateway, error is null on success.
+	 */
+	public static void smsSent(String gateway, long durationNanos, Throwable error) {
+		String outcome = error == null ? "success" : "error";
+		Timer timer = (Timer) METERS.computeIfAbsent(new Key("send", "gateway", gateway, "outcome", outcome), key -> Timer.builder(PREFIX + "send")
+			.description("Latency of the SMS gateway calls")
+			.tag("gateway", gateway)
+			.tag("outcome", outcome)
+			.publishPercentileHistogram()
+			.minimumExpectedValue(Duration.ofMillis(1))
+			.maximumExpectedValue(Duration.ofSeconds(30))
+			.register(registry()));
+		timer.record(durationNanos, TimeUnit.NANOSECONDS);
+		if (error != null) {
+			counter("send.errors", "Failed SMS gateway calls by exception type",
+				"gateway", gateway, "exception", error.getClass().getSimpleName()).increment();
+		}
+	}
+
+	/**
+	 * Returns the counter of the given name and tags, registered on first use.
+	 */
+	private static Counter counter(String name, String description, String... tags) {
+		return (Counter) METERS.computeIfAbsent(new Key(name, tags), key -> Counter.builder(PREFIX + name)
+			.description(description)
+			.tags(tags)
+			.register(registry()));
+	}
+
+	/**
+	 * Name and tag key/value pairs of a cached meter, the tag keys are fixed per name.
+	 */
+	private record Key(String name, String... tags) {
+
+		boolean hasRealm(String realmId) {
+			for (int i = 0; i + 1 < tags.length; i += 2) {
+				if (tags[i].equals(REALM_ID) && tags[i + 1].equals(realmId)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key other && name.equals(other.name) && Arrays.equals(tags, other.tags);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * name.hashCode() + Arrays.hashCode(tags);
+		}
+	}
+
+}
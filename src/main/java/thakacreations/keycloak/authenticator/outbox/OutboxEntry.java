@@ -0,0 +1,14 @@
+package thakacreations.keycloak.authenticator.outbox;
+
+/**
+ * An SMS written to the outbox and not yet acknowledged. Neither the text nor the code is stored, the SMS is
+ * rebuilt from the code the OTP store still holds for the user, issued at the given time. The config id is empty
+ * for executions without an authenticator configuration.
+ */
+public record OutboxEntry(long id, String realmId, String configId, String userId, long issuedTime, long expiryTime) {
+
+	public boolean isExpired(long now) {
+		return expiryTime <= now;
+	}
+
+}
@@ -0,0 +1,534 @@
+package thakacreations.keycloak.authenticator.outbox;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.jboss.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of the asynchronously dispatched SMS, so sends queued when a node dies are sent after its restart.
+ * <p>
+ * The log is a sequence of memory-mapped segment files of a fixed size. Every SMS is appended as an enqueue record
+ * before it is dispatched and an ack record is appended once the send has completed. Appends wait until their record
+ * has been forced to disk, a single flusher thread forces all records written in the meantime at once (group commit).
+ * A segment is deleted and unmapped as soon as all of its SMS have been acknowledged or their codes have expired,
+ * and the segments holding the SMS it acknowledges are gone, otherwise those SMS would be sent again after a restart.
+ * <p>
+ * Record layout: payload length (int, 0 marks the end of the segment), CRC32C of the payload (int), payload.
+ * <p>
+ * The log holds ids and times only, no code, text or phone number. Still, the directory and the segments are
+ * created readable by the owner only where the file system supports POSIX permissions, an existing directory
+ * keeps its permissions.
+ */
+public class SmsOutbox {
+
+	private static final Logger log = Logger.getLogger(SmsOutbox.class);
+
+	private static final byte TYPE_ENQUEUE = 1;
+	private static final byte TYPE_ACK = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final String FILE_PREFIX = "outbox-";
+	private static final String FILE_SUFFIX = ".log";
+	private static final long COMPACTION_INTERVAL_MILLIS = 1_000;
+	// an append never waits longer for its record to be forced
+	private static final long SYNC_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// Unsafe.invokeCleaner(ByteBuffer), null where not available, a mapping is then released by the GC only
+	private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+	private final Path directory;
+	private final int segmentSize;
+	private final AtomicLong ids = new AtomicLong();
+	private final Map<Long, Segment> pending = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedDeque<Segment> segments = new ConcurrentLinkedDeque<>();
+	private final List<OutboxEntry> recovered;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition dirty = lock.newCondition();
+	private final Condition flushed = lock.newCondition();
+	// guarded by lock
+	private Segment current;
+	// full segments whose last records the flusher has not forced yet
+	private final List<Segment> retired = new ArrayList<>();
+	private long appended;
+	private long durable;
+	private boolean running = true;
+
+	private final Thread flusher;
+
+	public SmsOutbox(Path directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		try {
+			Files.createDirectories(directory, ownerOnly(directory, "rwx------"));
+			List<Path> files = segmentFiles();
+			recovered = recover(files);
+			current = createSegment(files.isEmpty() ? 1 : sequence(files.get(files.size() - 1)) + 1);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot open the SMS outbox in " + directory, e);
+		}
+		flusher = new Thread(this::flushLoop, "sms-outbox-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * The unacknowledged, unexpired SMS found in the log on startup, to be sent again and acknowledged.
+	 */
+	public List<OutboxEntry> getRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * Appends the SMS and returns once it is on disk. Returns the id to acknowledge it with.
+	 * <p>
+	 * The calling request thread waits for the group commit to force the record, usually one fsync of the
+	 * segment, never longer than a second. A slow disk adds to the latency of every SMS sent.
+	 *
+	 * @throws IllegalStateException if the outbox has been closed
+	 */
+	public long append(String realmId, String configId, String userId, long issuedTime, long expiryTime) {
+		long id = ids.incrementAndGet();
+		byte[] payload = encode(new OutboxEntry(id, realmId, configId != null ? configId : "", userId, issuedTime, expiryTime));
+		long sequence;
+		lock.lock();
+		try {
+			if (!running) {
+				throw new IllegalStateException("The SMS outbox in " + directory + " has been closed");
+			}
+			Segment segment = write(payload);
+			segment.ids.add(id);
+			segment.maxExpiryTime = Math.max(segment.maxExpiryTime, expiryTime);
+			pending.put(id, segment);
+			sequence = ++appended;
+			dirty.signal();
+			awaitDurable(sequence);
+		} finally {
+			lock.unlock();
+		}
+		return id;
+	}
+
+	/**
+	 * Marks the SMS as sent (or given up on), it is not sent again after a restart.
+	 * Acks are not waited for, a lost ack only means the SMS is sent once more.
+	 */
+	public void ack(long id) {
+		Segment segment = pending.remove(id);
+		if (segment == null) {
+			return;
+		}
+		segment.ids.remove(id);
+		byte[] payload = ByteBuffer.allocate(9).put(TYPE_ACK).putLong(id).array();
+		lock.lock();
+		try {
+			if (!running) {
+				return;
+			}
+			Segment written = write(payload);
+			if (written != segment) {
+				written.acked.add(segment);
+			}
+			appended++;
+			dirty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Reports the unacknowledged SMS as gauge keycloak.sms.outbox.pending.
+	 */
+	public void registerMetrics() {
+		SmsMetrics.gauge("outbox.pending", "SMS written to the outbox and not yet sent", this, SmsOutbox::size);
+	}
+
+	public void close() {
+		lock.lock();
+		try {
+			if (!running) {
+				return;
+			}
+			running = false;
+			dirty.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (flusher.isAlive()) {
+			// it may still force a segment, none is unmapped, the next start compacts the log
+			log.warn("SMS outbox flusher did not stop in time, leaving the log uncompacted");
+			return;
+		}
+		lock.lock();
+		try {
+			for (Segment segment : retired) {
+				segment.buffer.force();
+			}
+			retired.clear();
+			current.buffer.force();
+		} finally {
+			lock.unlock();
+		}
+		compact();
+	}
+
+	// callers hold the lock
+	private Segment write(byte[] payload) {
+		int size = HEADER_SIZE + payload.length;
+		// the last 4 bytes of a segment stay zero as end marker
+		if (size > segmentSize - 4) {
+			throw new IllegalArgumentException("SMS of " + payload.length + " bytes exceeds the outbox segment size");
+		}
+		if (current.position + size > segmentSize - 4) {
+			roll();
+		}
+		Segment segment = current;
+		CRC32C crc = new CRC32C();
+		crc.update(payload);
+		int position = segment.position;
+		segment.buffer.putInt(position + 4, (int) crc.getValue());
+		segment.buffer.put(position + HEADER_SIZE, payload);
+		// the length last, a torn record reads as the end of the segment
+		segment.buffer.putInt(position, payload.length);
+		segment.position = position + size;
+		return segment;
+	}
+
+	// callers hold the lock, the flusher forces the rest of the full segment outside of it
+	private void roll() {
+		Segment full = current;
+		retired.add(full);
+		try {
+			current = createSegment(full.sequence + 1);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot create an SMS outbox segment in " + directory, e);
+		}
+	}
+
+	// callers hold the lock
+	private void awaitDurable(long sequence) {
+		long remaining = SYNC_TIMEOUT_NANOS;
+		while (durable < sequence && running && remaining > 0) {
+			try {
+				remaining = flushed.awaitNanos(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		if (durable < sequence) {
+			log.warn("SMS outbox record not forced to disk in time, continuing without waiting");
+		}
+	}
+
+	private void flushLoop() {
+		long nextCompaction = System.currentTimeMillis() + COMPACTION_INTERVAL_MILLIS;
+		while (true) {
+			Segment segment;
+			int from;
+			int to;
+			Segment[] full;
+			long target;
+			lock.lock();
+			try {
+				while (durable == appended && running && System.currentTimeMillis() < nextCompaction) {
+					dirty.await(COMPACTION_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				if (!running && durable == appended) {
+					return;
+				}
+				target = appended;
+				full = retired.toArray(new Segment[0]);
+				retired.clear();
+				segment = current;
+				from = segment.flushed;
+				to = segment.position;
+				segment.flushed = to;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				for (Segment rolled : full) {
+					// only the flusher touches flushed once a segment is full
+					if (rolled.position > rolled.flushed) {
+						rolled.buffer.force(rolled.flushed, rolled.position - rolled.flushed);
+						rolled.flushed = rolled.position;
+					}
+				}
+				if (to > from) {
+					segment.buffer.force(from, to - from);
+				}
+			} catch (RuntimeException e) {
+				log.error("Failed to force the SMS outbox to disk", e);
+			}
+
+			lock.lock();
+			try {
+				durable = Math.max(durable, target);
+				flushed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			if (System.currentTimeMillis() >= nextCompaction) {
+				compact();
+				nextCompaction = System.currentTimeMillis() + COMPACTION_INTERVAL_MILLIS;
+			}
+		}
+	}
+
+	/**
+	 * Deletes and unmaps the segments whose SMS have all been acknowledged or have expired. A segment holding
+	 * acks of SMS in an earlier segment is kept until that one is gone, oldest first, so a single pass deletes
+	 * a segment together with the later ones acknowledging it. The segment written to and the full segments
+	 * not forced yet are kept. Called by the flusher, and once it has stopped by close().
+	 */
+	private void compact() {
+		long now = System.currentTimeMillis();
+		List<Segment> deleted = new ArrayList<>();
+		lock.lock();
+		try {
+			for (Iterator<Segment> iterator = segments.iterator(); iterator.hasNext(); ) {
+				Segment segment = iterator.next();
+				segment.acked.removeIf(origin -> origin.deleted);
+				if (running && segment == current || retired.contains(segment) || !segment.acked.isEmpty()
+					|| !segment.ids.isEmpty() && segment.maxExpiryTime > now) {
+					continue;
+				}
+				segment.deleted = true;
+				segment.ids.forEach(pending::remove);
+				iterator.remove();
+				deleted.add(segment);
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Segment segment : deleted) {
+			try {
+				Files.deleteIfExists(segment.path);
+			} catch (IOException e) {
+				log.warnf(e, "Failed to delete SMS outbox segment %s", segment.path);
+			}
+			if (segment.buffer != null) {
+				unmap(segment.buffer);
+			}
+		}
+	}
+
+	private static void unmap(ByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invokeExact(buffer);
+		} catch (Throwable e) {
+			log.debugf(e, "Failed to unmap an SMS outbox segment, leaving it to the garbage collector");
+		}
+	}
+
+	private static MethodHandle invokeCleaner() {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup()
+				.findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+				.bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.debugf("Cannot unmap SMS outbox segments explicitly: %s", e);
+			return null;
+		}
+	}
+
+	private Segment createSegment(long sequence) throws IOException {
+		Path path = directory.resolve(String.format("%s%016d%s", FILE_PREFIX, sequence, FILE_SUFFIX));
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE),
+			ownerOnly(directory, "rw-------"))) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		Segment segment = new Segment(sequence, path, buffer);
+		segments.add(segment);
+		return segment;
+	}
+
+	private static FileAttribute<?>[] ownerOnly(Path path, String permissions) {
+		if (!path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			return new FileAttribute<?>[0];
+		}
+		return new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+	}
+
+	private List<Path> segmentFiles() throws IOException {
+		try (Stream<Path> list = Files.list(directory)) {
+			return list.filter(path -> path.getFileName().toString().startsWith(FILE_PREFIX) && path.getFileName().toString().endsWith(FILE_SUFFIX))
+				.sorted()
+				.toList();
+		}
+	}
+
+	private static long sequence(Path file) {
+		String name = file.getFileName().toString();
+		return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+	}
+
+	private List<OutboxEntry> recover(List<Path> files) throws IOException {
+		Map<Long, OutboxEntry> entries = new LinkedHashMap<>();
+		Map<Long, Segment> origins = new ConcurrentHashMap<>();
+		long maxId = 0;
+		for (Path file : files) {
+			Segment segment = new Segment(sequence(file), file, null);
+			segments.add(segment);
+			MappedByteBuffer buffer;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			try {
+				int position = 0;
+				while (position + HEADER_SIZE <= buffer.limit()) {
+					int length = buffer.getInt(position);
+					if (length <= 0 || position + HEADER_SIZE + length > buffer.limit()) {
+						break;
+					}
+					byte[] payload = new byte[length];
+					buffer.get(position + HEADER_SIZE, payload);
+					CRC32C crc = new CRC32C();
+					crc.update(payload);
+					if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+						log.warnf("Torn record in SMS outbox segment %s at %d, ignoring the rest of the segment", file, position);
+						break;
+					}
+					position += HEADER_SIZE + length;
+
+					if (payload[0] == TYPE_ENQUEUE) {
+						OutboxEntry entry = decode(payload);
+						entries.put(entry.id(), entry);
+						origins.put(entry.id(), segment);
+						maxId = Math.max(maxId, entry.id());
+					} else if (payload[0] == TYPE_ACK) {
+						long id = ByteBuffer.wrap(payload, 1, 8).getLong();
+						entries.remove(id);
+						Segment origin = origins.get(id);
+						if (origin != null && origin != segment) {
+							segment.acked.add(origin);
+						}
+						maxId = Math.max(maxId, id);
+					}
+				}
+			} finally {
+				unmap(buffer);
+			}
+		}
+		ids.set(maxId);
+
+		long now = System.currentTimeMillis();
+		List<OutboxEntry> unsent = new ArrayList<>();
+		for (OutboxEntry entry : entries.values()) {
+			if (entry.isExpired(now)) {
+				continue;
+			}
+			Segment segment = origins.get(entry.id());
+			segment.ids.add(entry.id());
+			segment.maxExpiryTime = Math.max(segment.maxExpiryTime, entry.expiryTime());
+			pending.put(entry.id(), segment);
+			unsent.add(entry);
+		}
+		compact();
+		if (!unsent.isEmpty()) {
+			log.infof("Recovered %d unsent SMS from the outbox in %s", unsent.size(), directory);
+		}
+		return Collections.unmodifiableList(unsent);
+	}
+
+	private static byte[] encode(OutboxEntry entry) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(TYPE_ENQUEUE);
+			out.writeLong(entry.id());
+			out.writeLong(entry.issuedTime());
+			out.writeLong(entry.expiryTime());
+			out.writeUTF(entry.realmId());
+			out.writeUTF(entry.configId());
+			out.writeUTF(entry.userId());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static OutboxEntry decode(byte[] payload) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1))) {
+			long id = in.readLong();
+			long issuedTime = in.readLong();
+			long expiryTime = in.readLong();
+			return new OutboxEntry(id, in.readUTF(), in.readUTF(), in.readUTF(), issuedTime, expiryTime);
+		}
+	}
+
+	private static class Segment {
+		final long sequence;
+		final Path path;
+		// null for the segments found on startup, they are only read
+		final MappedByteBuffer buffer;
+		final Set<Long> ids = ConcurrentHashMap.newKeySet();
+		volatile long maxExpiryTime;
+		// earlier segments holding SMS acknowledged in this one, guarded by the outbox lock
+		final Set<Segment> acked = new HashSet<>();
+		// guarded by the outbox lock
+		boolean deleted;
+		// guarded by the outbox lock while the segment is current, by the flusher once it is full
+		int position;
+		int flushed;
+
+		Segment(long sequence, Path path, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.path = path;
+			this.buffer = buffer;
+		}
+	}
+
+}
@@ -0,0 +1,378 @@
+package thakacreations.keycloak.authenticator.store;
+
+import thakacreations.keycloak.authenticator.OtpCodeGenerator;
+
+import java.security.SecureRandom;
+
+/**
+ * Node-local OTP store keeping its entries in primitive arrays instead of String keys and entry objects.
+ * <p>
+ * An entry takes a 128 bit hash of realm id and username as key (two longs), its code digits, code length and
+ * expiry packed into one long and its lifetime and failed attempts in an int: 28 bytes per slot and 8 in the
+ * expiry wheel, 50 to 75 bytes per entry with the free slots of the tables and wheel buckets, compared to roughly
+ * 200 bytes in a ConcurrentHashMap. The hash is seeded randomly per store, so usernames colliding on purpose
+ * cannot be chosen up front. The tables are striped, every stripe is guarded by its own lock.
+ * <p>
+ * Every stripe expires its entries through its own {@link LongExpiryWheel} of second ticks, so an expiry run
+ * only looks at the entries that are due. Times are kept in seconds: an entry expires up to a second late and
+ * its issue time is rounded down to the second. Codes that do not fit, longer than 8 digits or not numeric,
+ * are kept in an {@link InMemoryOtpStore} next to the tables instead.
+ */
+public class CompactOtpStore implements OtpStoreProvider {
+
+	public static final int MAX_CODE_LENGTH = 8;
+
+	private static final int STRIPE_BITS = 6;
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int WHEEL_SIZE = 512;
+
+	private static final int CODE_BITS = 27;
+	private static final int LENGTH_BITS = 4;
+	private static final long CODE_MASK = (1L << CODE_BITS) - 1;
+	private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+	static final int EXPIRY_SHIFT = CODE_BITS + LENGTH_BITS;
+	static final long CODE_FIELD_MASK = (1L << EXPIRY_SHIFT) - 1;
+
+	// the int next to the packed code: lifetime in seconds below, failed attempts in the top bits
+	static final int ATTEMPTS_SHIFT = 24;
+	static final int LIFETIME_MASK = (1 << ATTEMPTS_SHIFT) - 1;
+	static final int MAX_ATTEMPTS = 0xFF;
+
+	private final Table[] tables = new Table[1 << STRIPE_BITS];
+	private final long seed1;
+	private final long seed2;
+	// codes that cannot be packed, the code length is an authenticator setting
+	private final InMemoryOtpStore overflow = new InMemoryOtpStore();
+
+	public CompactOtpStore() {
+		SecureRandom random = new SecureRandom();
+		seed1 = random.nextLong();
+		seed2 = random.nextLong();
+		long nowSeconds = Math.floorDiv(System.currentTimeMillis(), 1000);
+		for (int i = 0; i < tables.length; i++) {
+			tables[i] = new Table(INITIAL_CAPACITY, nowSeconds);
+		}
+	}
+
+	@Override
+	public boolean put(String realmId, String username, OtpEntry entry) {
+		long hash1 = hash(seed1, realmId, username);
+		long hash2 = hash(seed2, realmId, username) | 1;
+		Table table = table(hash1);
+		if (codeBits(entry) < 0) {
+			synchronized (table) {
+				table.remove(hash1, hash2);
+			}
+			return overflow.put(realmId, username, entry);
+		}
+		long value = pack(entry);
+		int meta = meta(entry, value);
+		synchronized (table) {
+			table.put(hash1, hash2, value, meta);
+		}
+		if (overflow.size() > 0) {
+			overflow.remove(realmId, username);
+		}
+		return true;
+	}
+
+	@Override
+	public OtpEntry get(String realmId, String username) {
+		long hash1 = hash(seed1, realmId, username);
+		long hash2 = hash(seed2, realmId, username) | 1;
+		Table table = table(hash1);
+		long value;
+		int meta;
+		synchronized (table) {
+			int slot = table.find(hash1, hash2);
+			if (slot < 0) {
+				return overflow.size() > 0 ? overflow.get(realmId, username) : null;
+			}
+			value = table.values[slot];
+			meta = table.metas[slot];
+		}
+		return unpack(value, meta & LIFETIME_MASK, meta >>> ATTEMPTS_SHIFT);
+	}
+
+	@Override
+	public void remove(String realmId, String username) {
+		long hash1 = hash(seed1, realmId, username);
+		long hash2 = hash(seed2, realmId, username) | 1;
+		Table table = table(hash1);
+		synchronized (table) {
+			table.remove(hash1, hash2);
+		}
+		if (overflow.size() > 0) {
+			overflow.remove(realmId, username);
+		}
+	}
+
+	@Override
+	public OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		long hash1 = hash(seed1, realmId, username);
+		long hash2 = hash(seed2, realmId, username) | 1;
+		long entered = codeBits(code);
+		Table table = table(hash1);
+		synchronized (table) {
+			int slot = table.find(hash1, hash2);
+			if (slot < 0) {
+				return overflow.size() > 0 ? overflow.verifyAndConsume(realmId, username, code, now, maxAttempts) : OtpVerification.NOT_FOUND;
+			}
+			long value = table.values[slot];
+			int attempts = table.metas[slot] >>> ATTEMPTS_SHIFT;
+			if (maxAttempts > 0 && attempts >= maxAttempts) {
+				return OtpVerification.LOCKED;
+			}
+			if (entered < 0 || (value & CODE_FIELD_MASK) != entered) {
+				if (attempts < MAX_ATTEMPTS) {
+					table.metas[slot] += 1 << ATTEMPTS_SHIFT;
+				}
+				return maxAttempts > 0 && attempts + 1 >= maxAttempts ? OtpVerification.LOCKED : OtpVerification.INVALID;
+			}
+			if (value >>> EXPIRY_SHIFT < Math.floorDiv(now, 1000)) {
+				return OtpVerification.EXPIRED;
+			}
+			table.removeAt(slot);
+			return OtpVerification.VALID;
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Table table : tables) {
+			size += table.size;
+		}
+		return size + overflow.size();
+	}
+
+	/**
+	 * Removes the due expired entries, one stripe at a time. Returns the number of removed entries.
+	 */
+	int expireEntries(long now) {
+		long nowSeconds = Math.floorDiv(now, 1000);
+		int expired = 0;
+		for (Table table : tables) {
+			synchronized (table) {
+				expired += table.expire(nowSeconds);
+			}
+		}
+		return expired + overflow.expireEntries(now);
+	}
+
+	private Table table(long hash1) {
+		return tables[(int) (hash1 >>> (Long.SIZE - STRIPE_BITS))];
+	}
+
+	/**
+	 * Lifetime and failed attempts of the entry, packed into the int stored next to its packed value.
+	 */
+	static int meta(OtpEntry entry, long value) {
+		long lifetime = Math.min(Math.max((value >>> EXPIRY_SHIFT) - Math.floorDiv(entry.getIssuedTime(), 1000), 0), LIFETIME_MASK);
+		return Math.min(Math.max(entry.getAttempts(), 0), MAX_ATTEMPTS) << ATTEMPTS_SHIFT | (int) lifetime;
+	}
+
+	static long pack(OtpEntry entry) {
+		long code = codeBits(entry);
+		if (code < 0) {
+			throw new IllegalArgumentException("The compact OTP store holds numeric codes of 1 to " + MAX_CODE_LENGTH + " digits");
+		}
+		// rounded up, a code never expires early
+		long expirySeconds = Math.max(Math.floorDiv(entry.getExpiryTime() + 999, 1000), 0);
+		return expirySeconds << EXPIRY_SHIFT | code;
+	}
+
+	/**
+	 * Code length and digits of the entry as packed into the low bits, -1 if the code cannot be stored.
+	 * A numeric code is taken as it is, without formatting it.
+	 */
+	static long codeBits(OtpEntry entry) {
+		int length = entry.getCodeLength();
+		if (entry.getCodeDigits() < 0) {
+			return codeBits(entry.getCode());
+		}
+		return length < 1 || length > MAX_CODE_LENGTH ? -1 : (long) length << CODE_BITS | entry.getCodeDigits();
+	}
+
+	/**
+	 * Code length and digits as packed into the low bits of an entry, -1 if the code cannot be stored.
+	 */
+	static long codeBits(String code) {
+		int length = code != null ? code.length() : 0;
+		if (length < 1 || length > MAX_CODE_LENGTH) {
+			return -1;
+		}
+		long digits = OtpCodeGenerator.parse(code, length);
+		return digits < 0 ? -1 : (long) length << CODE_BITS | digits;
+	}
+
+	static OtpEntry unpack(long value, int lifetime, int attempts) {
+		long expirySeconds = value >>> EXPIRY_SHIFT;
+		int length = (int) (value >>> CODE_BITS & LENGTH_MASK);
+		return new OtpEntry(value & CODE_MASK, length, (expirySeconds - lifetime) * 1000, expirySeconds * 1000, attempts);
+	}
+
+	/**
+	 * Seeded 64 bit hash of realm id, a separator and username, without building the joined string.
+	 */
+	static long hash(long seed, String realmId, String username) {
+		long h = seed ^ (realmId.length() * 0x9E3779B97F4A7C15L);
+		for (int i = 0; i < realmId.length(); i++) {
+			h = (h ^ realmId.charAt(i)) * 0x100000001B3L;
+			h ^= h >>> 29;
+		}
+		h = (h ^ ':') * 0x100000001B3L;
+		for (int i = 0; i < username.length(); i++) {
+			h = (h ^ username.charAt(i)) * 0x100000001B3L;
+			h ^= h >>> 29;
+		}
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Linear probing hash table over parallel primitive arrays, a slot is empty when its second key half is 0.
+	 * The expiry wheel holds the second key halves, the chance of two live keys of a stripe sharing one is
+	 * negligible and only an expired entry is ever removed by it. Not thread-safe, the store synchronizes on
+	 * the table.
+	 */
+	static final class Table {
+		final LongExpiryWheel wheel;
+		long[] keys1;
+		long[] keys2;
+		long[] values;
+		int[] metas;
+		int mask;
+		int size;
+
+		Table(int capacity, long nowSeconds) {
+			wheel = new LongExpiryWheel(WHEEL_SIZE, nowSeconds);
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			keys1 = new long[capacity];
+			keys2 = new long[capacity];
+			values = new long[capacity];
+			metas = new int[capacity];
+			mask = capacity - 1;
+		}
+
+		int find(long hash1, long hash2) {
+			for (int slot = (int) hash2 & mask; keys2[slot] != 0; slot = (slot + 1) & mask) {
+				if (keys2[slot] == hash2 && keys1[slot] == hash1) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		void put(long hash1, long hash2, long value, int meta) {
+			if ((size + 1) * 4L > (mask + 1) * 3L) {
+				resize((mask + 1) * 2);
+			}
+			insert(hash1, hash2, value, meta);
+			// due once the expiry second has passed
+			wheel.schedule(hash2, (value >>> EXPIRY_SHIFT) + 1);
+		}
+
+		void remove(long hash1, long hash2) {
+			int slot = find(hash1, hash2);
+			if (slot >= 0) {
+				removeAt(slot);
+			}
+		}
+
+		private void insert(long hash1, long hash2, long value, int meta) {
+			int slot = (int) hash2 & mask;
+			while (keys2[slot] != 0 && (keys2[slot] != hash2 || keys1[slot] != hash1)) {
+				slot = (slot + 1) & mask;
+			}
+			if (keys2[slot] == 0) {
+				size++;
+			}
+			keys1[slot] = hash1;
+			keys2[slot] = hash2;
+			values[slot] = value;
+			metas[slot] = meta;
+		}
+
+		/**
+		 * Backward shift deletion, so no tombstones pile up.
+		 */
+		void removeAt(int slot) {
+			int free = slot;
+			for (int next = (free + 1) & mask; keys2[next] != 0; next = (next + 1) & mask) {
+				int home = (int) keys2[next] & mask;
+				// move the entry back unless its home lies cyclically between the free slot and its position
+				if (((next - home) & mask) >= ((next - free) & mask)) {
+					keys1[free] = keys1[next];
+					keys2[free] = keys2[next];
+					values[free] = values[next];
+					metas[free] = metas[next];
+					free = next;
+				}
+			}
+			keys1[free] = 0;
+			keys2[free] = 0;
+			values[free] = 0;
+			metas[free] = 0;
+			size--;
+		}
+
+		/**
+		 * Removes the entries due by the given second. Returns the number of removed entries.
+		 */
+		int expire(long nowSeconds) {
+			int[] expired = {0};
+			wheel.advance(nowSeconds, (hash2, bucket) -> {
+				int slot = findKey2(hash2);
+				if (slot < 0) {
+					// consumed or removed meanwhile
+					return false;
+				}
+				long expirySeconds = values[slot] >>> EXPIRY_SHIFT;
+				if (expirySeconds < nowSeconds) {
+					removeAt(slot);
+					expired[0]++;
+					return false;
+				}
+				// due in a later round of this bucket, or re-issued and scheduled in another one
+				return wheel.index(expirySeconds + 1) == bucket;
+			});
+			if (size * 8L < mask + 1 && mask + 1 > INITIAL_CAPACITY) {
+				// shrink after a peak so the memory is given back
+				resize(Math.max(Integer.highestOneBit(Math.max(size, 1)) * 4, INITIAL_CAPACITY));
+			}
+			return expired[0];
+		}
+
+		private int findKey2(long hash2) {
+			for (int slot = (int) hash2 & mask; keys2[slot] != 0; slot = (slot + 1) & mask) {
+				if (keys2[slot] == hash2) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys1 = keys1;
+			long[] oldKeys2 = keys2;
+			long[] oldValues = values;
+			int[] oldMetas = metas;
+			allocate(capacity);
+			size = 0;
+			for (int i = 0; i < oldKeys2.length; i++) {
+				if (oldKeys2[i] != 0) {
+					insert(oldKeys1[i], oldKeys2[i], oldValues[i], oldMetas[i]);
+				}
+			}
+		}
+	}
+
+}
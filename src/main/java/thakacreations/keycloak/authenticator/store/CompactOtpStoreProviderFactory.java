@@ -0,0 +1,68 @@
+package thakacreations.keycloak.authenticator.store;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import com.google.auto.service.AutoService;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@AutoService(OtpStoreProviderFactory.class)
+public class CompactOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+	public static final String PROVIDER_ID = "compact";
+
+	private static final Logger log = Logger.getLogger(CompactOtpStoreProviderFactory.class);
+
+	private static final long REAPER_INTERVAL_MILLIS = 1000;
+
+	private final CompactOtpStore store = new CompactOtpStore();
+
+	private ScheduledExecutorService reaper;
+
+	@Override
+	public OtpStoreProvider create(KeycloakSession session) {
+		return store;
+	}
+
+	@Override
+	public void init(Config.Scope config) {
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		SmsMetrics.otpStoreSize(PROVIDER_ID, store, CompactOtpStore::size);
+		reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sms-otp-compact-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reaper.scheduleAtFixedRate(() -> {
+			try {
+				long start = System.nanoTime();
+				int expired = store.expireEntries(System.currentTimeMillis());
+				SmsMetrics.otpCleanup(PROVIDER_ID, System.nanoTime() - start, expired);
+			} catch (RuntimeException e) {
+				log.warn("Failed to expire OTP entries", e);
+			}
+		}, REAPER_INTERVAL_MILLIS, REAPER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() {
+		if (reaper != null) {
+			reaper.shutdownNow();
+			reaper = null;
+		}
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+}
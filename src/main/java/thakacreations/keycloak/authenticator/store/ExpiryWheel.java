@@ -0,0 +1,132 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Hashed timing wheel for OTP expiry.
+ * Scheduling a key is O(1) regardless of the number of outstanding entries,
+ * advancing the wheel only touches the keys that are due.
+ * Deadlines beyond one revolution simply stay in their bucket for further rounds.
+ * <p>
+ * Any thread may schedule keys at any time. Calls of advance() and visitEarliest() must not overlap, the
+ * caller serializes them, e.g. with a lock, and may make them from any thread.
+ */
+public class ExpiryWheel<K> extends TimingWheel {
+
+	private final long tickMillis;
+	private final List<Bucket<K>> buckets;
+
+	public ExpiryWheel(long tickMillis, int wheelSize) {
+		super(wheelSize, System.currentTimeMillis() / positive(tickMillis));
+		this.tickMillis = tickMillis;
+		this.buckets = new ArrayList<>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			buckets.add(new Bucket<>());
+		}
+	}
+
+	/**
+	 * Registers a deadline for the given key. Rescheduling the same key is allowed,
+	 * the expire callback has to check whether the entry is still due.
+	 */
+	public void schedule(K key, long expiryTime) {
+		buckets.get(scheduleBucket(Math.floorDiv(expiryTime, tickMillis) + 1)).add(new Timeout<>(key, expiryTime));
+	}
+
+	/**
+	 * Advances the wheel up to the given time, handing every due key to the callback.
+	 * Must not overlap with another advance() or visitEarliest().
+	 */
+	public void advance(long now, ObjLongConsumer<K> expire) {
+		advanceTo(now / tickMillis, index -> {
+			Bucket<K> bucket = buckets.get(index);
+			// keys scheduled meanwhile are left for the next round
+			int pending = bucket.size();
+			for (int i = 0; i < pending; i++) {
+				Timeout<K> timeout = bucket.poll();
+				if (timeout == null) {
+					break;
+				}
+				if (timeout.expiryTime > now) {
+					// due in a later round
+					bucket.add(timeout);
+				} else {
+					expire.accept(timeout.key, timeout.expiryTime);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Hands the scheduled keys to the visitor, soonest deadline tick first, until it asks to stop or one
+	 * revolution has been visited. Must not overlap with advance() or another visitEarliest().
+	 */
+	public void visitEarliest(Visitor<K> visitor) {
+		long tick = lastTick();
+		for (long t = tick + 1; t <= tick + mask + 1; t++) {
+			Bucket<K> bucket = buckets.get(index(t));
+			int pending = bucket.size();
+			for (int i = 0; i < pending; i++) {
+				Timeout<K> timeout = bucket.poll();
+				if (timeout == null) {
+					break;
+				}
+				if (Math.floorDiv(timeout.expiryTime, tickMillis) + 1 > t) {
+					// due in a later round
+					bucket.add(timeout);
+				} else if (!visitor.visit(timeout.key, timeout.expiryTime)) {
+					bucket.add(timeout);
+					return;
+				}
+			}
+		}
+	}
+
+	private static long positive(long tickMillis) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tickMillis must be positive");
+		}
+		return tickMillis;
+	}
+
+	@FunctionalInterface
+	public interface Visitor<K> {
+		/**
+		 * Returns true to drop the deadline and go on with the next one, false to keep it and stop.
+		 */
+		boolean visit(K key, long expiryTime);
+	}
+
+	private record Timeout<K>(K key, long expiryTime) {
+	}
+
+	/**
+	 * Queue of the deadlines of one bucket with its length, ConcurrentLinkedQueue.size() walks the queue.
+	 */
+	private static class Bucket<K> {
+		private final ConcurrentLinkedQueue<Timeout<K>> timeouts = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger size = new AtomicInteger();
+
+		void add(Timeout<K> timeout) {
+			timeouts.add(timeout);
+			size.incrementAndGet();
+		}
+
+		Timeout<K> poll() {
+			Timeout<K> timeout = timeouts.poll();
+			if (timeout != null) {
+				size.decrementAndGet();
+			}
+			return timeout;
+		}
+
+		int size() {
+			return size.get();
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-min sketch of 4 bit counters estimating how often a key has been used recently, as in TinyLFU.
+ * Once the increments reach ten times the number of counters per row, all counters are halved, so old
+ * popularity fades. Increments from concurrent threads may occasionally be lost, which only makes the
+ * estimate a little lower.
+ */
+public class FrequencySketch {
+
+	private static final int DEPTH = 4;
+	private static final long RESET_MASK = 0x7777_7777_7777_7777L;
+	private static final long[] SEEDS = {0x97CB3127L, 0xB492B66FBE98F273L, 0x9AE16A3B2F90404FL, 0xCBF29CE484222325L};
+
+	private final AtomicLongArray table;
+	private final int mask;
+	private final int sampleSize;
+	private final AtomicInteger additions = new AtomicInteger();
+	private final int seed = new SecureRandom().nextInt();
+
+	public FrequencySketch(int expectedEntries) {
+		int size = Integer.highestOneBit(Math.max(Math.min(expectedEntries, 1 << 28), 16) - 1) << 1;
+		table = new AtomicLongArray(size);
+		mask = size - 1;
+		sampleSize = 10 * size;
+	}
+
+	/**
+	 * Returns the estimated number of recent uses of the key, at most 15.
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			long word = table.get(index(hash, i));
+			frequency = Math.min(frequency, (int) (word >>> offset(hash, i) & 0xF));
+		}
+		return frequency;
+	}
+
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			added |= incrementAt(index(hash, i), offset(hash, i));
+		}
+		if (added && additions.incrementAndGet() >= sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int offset) {
+		long word = table.get(index);
+		if ((word >>> offset & 0xF) == 0xF) {
+			return false;
+		}
+		return table.compareAndSet(index, word, word + (1L << offset));
+	}
+
+	private void reset() {
+		additions.set(0);
+		for (int i = 0; i <= mask; i++) {
+			long word = table.get(i);
+			table.set(i, word >>> 1 & RESET_MASK);
+		}
+	}
+
+	private int index(int hash, int row) {
+		long h = (hash + SEEDS[row]) * SEEDS[row];
+		return (int) (h ^ h >>> 32) & mask;
+	}
+
+	// one of the 16 counters of the word, every row uses a different one
+	private static int offset(int hash, int row) {
+		return ((hash >>> (row << 3) & 3) << 2 | row) << 2;
+	}
+
+	private int spread(int hash) {
+		hash ^= seed;
+		hash *= 0x9E3779B9;
+		return hash ^ hash >>> 16;
+	}
+
+}
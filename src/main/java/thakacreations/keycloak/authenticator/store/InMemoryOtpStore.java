@@ -0,0 +1,226 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Node-local OTP store, requires sticky sessions when running a cluster.
+ * <p>
+ * The store can be bounded by a number of entries and an estimated number of bytes. When a new code exceeds
+ * a bound, expired codes are dropped first, then the codes expiring soonest are evicted to make room, unless
+ * such a victim has been used more often recently than the new key: then the new code is rejected instead
+ * (TinyLFU admission), so a flood of single-use keys cannot push out the codes of users in the middle of a login.
+ * On a tie the new code is admitted. Issuing, looking up and verifying a code all count as uses of its key.
+ * <p>
+ * Only writers that push the store over a bound take the eviction lock. An eviction drops all expired codes
+ * among the earliest deadlines, even below the bounds, so the next writers usually find room without it.
+ */
+public class InMemoryOtpStore implements OtpStoreProvider {
+
+	// estimated heap use of an entry apart from its key and code characters: map node, key and code strings,
+	// entry object and its timeout in the expiry wheel
+	static final int ENTRY_OVERHEAD = 200;
+
+	private final Map<String, OtpEntry> entries = new ConcurrentHashMap<>();
+
+	// Expiry deadlines of the stored OTPs, advanced by the reaper and visited by evicting writers, both under evictionLock
+	private final ExpiryWheel<String> expiryWheel = new ExpiryWheel<>(1000, 512);
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final FrequencySketch sketch;
+	private final AtomicLong bytes = new AtomicLong();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	// guards the expiry wheel against the reaper and evicting writers
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	public InMemoryOtpStore() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param maxEntries maximum number of entries, 0 for no limit
+	 * @param maxBytes maximum estimated heap use, 0 for no limit
+	 */
+	public InMemoryOtpStore(int maxEntries, long maxBytes) {
+		this.maxEntries = Math.max(maxEntries, 0);
+		this.maxBytes = Math.max(maxBytes, 0);
+		if (isBounded()) {
+			int expectedEntries = this.maxEntries > 0 ? this.maxEntries : (int) Math.min(this.maxBytes / ENTRY_OVERHEAD, Integer.MAX_VALUE);
+			sketch = new FrequencySketch(expectedEntries);
+		} else {
+			sketch = null;
+		}
+	}
+
+	@Override
+	public boolean put(String realmId, String username, OtpEntry entry) {
+		String key = OtpStoreProvider.key(realmId, username);
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		OtpEntry previous = entries.put(key, entry);
+		account(weight(key, entry) - (previous != null ? weight(key, previous) : 0));
+		expiryWheel.schedule(key, entry.getExpiryTime());
+		if (previous == null && isOverLimit()) {
+			return evict(key, entry);
+		}
+		return true;
+	}
+
+	@Override
+	public OtpEntry get(String realmId, String username) {
+		String key = OtpStoreProvider.key(realmId, username);
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		return entries.get(key);
+	}
+
+	@Override
+	public void remove(String realmId, String username) {
+		String key = OtpStoreProvider.key(realmId, username);
+		OtpEntry removed = entries.remove(key);
+		if (removed != null) {
+			account(-weight(key, removed));
+		}
+	}
+
+	@Override
+	public OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		String key = OtpStoreProvider.key(realmId, username);
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		OtpVerification[] verification = {OtpVerification.NOT_FOUND};
+		entries.computeIfPresent(key, (k, entry) -> {
+			verification[0] = OtpStoreProvider.verify(entry, code, now, maxAttempts);
+			if (verification[0] == OtpVerification.VALID) {
+				account(-weight(k, entry));
+				return null;
+			}
+			if (verification[0] == OtpVerification.INVALID) {
+				OtpEntry failed = entry.withFailedAttempt();
+				verification[0] = OtpStoreProvider.afterFailure(failed, maxAttempts);
+				return failed;
+			}
+			return entry;
+		});
+		return verification[0];
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long bytes() {
+		return bytes.get();
+	}
+
+	public long evictions() {
+		return evictions.sum();
+	}
+
+	public long rejections() {
+		return rejections.sum();
+	}
+
+	public boolean isBounded() {
+		return maxEntries > 0 || maxBytes > 0;
+	}
+
+	/**
+	 * Remove the entries whose deadline has passed, only the due keys are visited.
+	 * Returns the number of removed entries.
+	 */
+	int expireEntries(long now) {
+		int[] expired = {0};
+		evictionLock.lock();
+		try {
+			expiryWheel.advance(now, (key, expiryTime) ->
+				// the key may have been re-issued with a later deadline in the meantime
+				entries.computeIfPresent(key, (k, entry) -> {
+					if (entry.isExpired(now)) {
+						expired[0]++;
+						account(-weight(k, entry));
+						return null;
+					}
+					return entry;
+				}));
+		} finally {
+			evictionLock.unlock();
+		}
+		return expired[0];
+	}
+
+	/**
+	 * Makes room for the new entry, evicting the entries expiring soonest or rejecting the new one.
+	 * Returns false if the new entry has been rejected.
+	 */
+	private boolean evict(String candidateKey, OtpEntry candidate) {
+		long now = System.currentTimeMillis();
+		boolean[] rejected = {false};
+		evictionLock.lock();
+		try {
+			expiryWheel.visitEarliest((key, expiryTime) -> {
+				OtpEntry victim = entries.get(key);
+				if (victim == null || victim.getExpiryTime() != expiryTime) {
+					// removed or re-issued, a stale deadline
+					return true;
+				}
+				if (victim.isExpired(now)) {
+					removeEntry(key, victim);
+					return true;
+				}
+				if (!isOverLimit()) {
+					return false;
+				}
+				// as in TinyLFU the victim stays if it has been used more often than the new key, a tie admits the new key
+				if (key.equals(candidateKey) || sketch.frequency(candidateKey) < sketch.frequency(key)) {
+					rejected[0] = true;
+					return false;
+				}
+				if (removeEntry(key, victim)) {
+					evictions.increment();
+				}
+				return true;
+			});
+			// nothing to evict within a revolution of the wheel
+			rejected[0] |= isOverLimit();
+			if (rejected[0] && removeEntry(candidateKey, candidate)) {
+				rejections.increment();
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+		return !rejected[0];
+	}
+
+	private boolean removeEntry(String key, OtpEntry entry) {
+		if (entries.remove(key, entry)) {
+			account(-weight(key, entry));
+			return true;
+		}
+		return false;
+	}
+
+	// the bytes are only counted by a bounded store, the counter would be contended by every put otherwise
+	private void account(long delta) {
+		if (sketch != null) {
+			bytes.addAndGet(delta);
+		}
+	}
+
+	private boolean isOverLimit() {
+		return maxEntries > 0 && entries.size() > maxEntries || maxBytes > 0 && bytes.get() > maxBytes;
+	}
+
+	private static long weight(String key, OtpEntry entry) {
+		return ENTRY_OVERHEAD + key.length() + entry.getCodeLength();
+	}
+
+}
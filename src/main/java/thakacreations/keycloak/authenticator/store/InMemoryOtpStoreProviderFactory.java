@@ -0,0 +1,67 @@
+package thakacreations.keycloak.authenticator.store;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import com.google.auto.service.AutoService;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@AutoService(OtpStoreProviderFactory.class)
+public class InMemoryOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+	public static final String PROVIDER_ID = "local";
+
+	private static final long REAPER_INTERVAL_MILLIS = 1000;
+
+	private ScheduledExecutorService reaper;
+	private PartitionedOtpStore store;
+
+	@Override
+	public OtpStoreProvider create(KeycloakSession session) {
+		return store;
+	}
+
+	@Override
+	public void init(Config.Scope config) {
+		AtomicInteger counter = new AtomicInteger();
+		// the partitions' expiry tasks share these threads, core threads are only started with the first partition
+		reaper = Executors.newScheduledThreadPool(Math.max(config.getInt("reaperThreads", 1), 1), runnable -> {
+			Thread thread = new Thread(runnable, "sms-otp-reaper-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		store = new PartitionedOtpStore(config.getInt("maxEntries", 0), config.getLong("maxBytes", 0L), reaper, REAPER_INTERVAL_MILLIS);
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		SmsMetrics.otpStoreSize(PROVIDER_ID, store, PartitionedOtpStore::size);
+		factory.register(event -> {
+			if (event instanceof RealmModel.RealmRemovedEvent removed) {
+				store.dropPartition(removed.getRealm().getId());
+			}
+		});
+	}
+
+	@Override
+	public void close() {
+		if (store != null) {
+			store.close();
+		}
+		if (reaper != null) {
+			reaper.shutdownNow();
+			reaper = null;
+		}
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+}
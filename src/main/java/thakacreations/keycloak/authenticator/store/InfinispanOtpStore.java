@@ -0,0 +1,69 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster-wide OTP store backed by one of Keycloak's Infinispan caches.
+ * Entries are kept as plain strings so they are marshallable without additional schemas.
+ */
+public class InfinispanOtpStore implements OtpStoreProvider {
+
+	private static final Logger log = Logger.getLogger(InfinispanOtpStore.class);
+
+	// conditional writes lost to concurrent requests for the same code before the attempt is rejected
+	static final int MAX_WRITE_ATTEMPTS = 8;
+
+	private final Cache<String, String> cache;
+
+	public InfinispanOtpStore(Cache<String, String> cache) {
+		this.cache = cache;
+	}
+
+	@Override
+	public boolean put(String realmId, String username, OtpEntry entry) {
+		long lifespan = Math.max(entry.getExpiryTime() - System.currentTimeMillis(), 1);
+		cache.put(OtpStoreProvider.key(realmId, username), entry.encode(), lifespan, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	@Override
+	public OtpEntry get(String realmId, String username) {
+		return OtpEntry.decode(cache.get(OtpStoreProvider.key(realmId, username)));
+	}
+
+	@Override
+	public void remove(String realmId, String username) {
+		cache.remove(OtpStoreProvider.key(realmId, username));
+	}
+
+	@Override
+	public OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		String key = OtpStoreProvider.key(realmId, username);
+		// conditional writes of the value that was read, if another request changed it meanwhile it is read again
+		for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+			String value = cache.get(key);
+			OtpEntry entry = OtpEntry.decode(value);
+			OtpVerification verification = OtpStoreProvider.verify(entry, code, now, maxAttempts);
+			if (verification == OtpVerification.VALID) {
+				if (cache.remove(key, value)) {
+					return verification;
+				}
+			} else if (verification == OtpVerification.INVALID) {
+				OtpEntry failed = entry.withFailedAttempt();
+				long lifespan = Math.max(entry.getExpiryTime() - now, 1);
+				if (cache.replace(key, value, failed.encode(), lifespan, TimeUnit.MILLISECONDS)) {
+					return OtpStoreProvider.afterFailure(failed, maxAttempts);
+				}
+			} else {
+				return verification;
+			}
+		}
+		// rejected whether the code was right or not, so the answer tells nothing about it
+		log.warnf("Gave up verifying an OTP of realm %s after %d concurrent changes", realmId, MAX_WRITE_ATTEMPTS);
+		return OtpVerification.INVALID;
+	}
+
+}
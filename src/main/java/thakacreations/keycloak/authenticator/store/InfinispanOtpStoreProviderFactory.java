@@ -0,0 +1,51 @@
+package thakacreations.keycloak.authenticator.store;
+
+import com.google.auto.service.AutoService;
+import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Uses the action token cache by default, as it is available on every node and already meant for
+ * short-lived single-use data. In Keycloak 26 it is a distributed cache, every node reads the codes
+ * from their owners. Another cache defined in the Infinispan configuration can be selected with the
+ * cacheName option.
+ */
+@AutoService(OtpStoreProviderFactory.class)
+public class InfinispanOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+	public static final String PROVIDER_ID = "infinispan";
+
+	private String cacheName;
+
+	@Override
+	public OtpStoreProvider create(KeycloakSession session) {
+		InfinispanConnectionProvider connections = session.getProvider(InfinispanConnectionProvider.class);
+		return new InfinispanOtpStore(connections.getCache(cacheName));
+	}
+
+	@Override
+	public void init(Config.Scope config) {
+		cacheName = config.get("cacheName", InfinispanConnectionProvider.ACTION_TOKEN_CACHE);
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public boolean isClusterWide() {
+		return true;
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+}
@@ -0,0 +1,73 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel of primitive long keys, the allocation free counterpart of {@link ExpiryWheel} for the
+ * compact store. Every bucket is a growable long array, a scheduled key costs 8 bytes instead of a queue node
+ * and a timeout object. Not thread-safe, the owner guards it by its own lock.
+ */
+class LongExpiryWheel extends TimingWheel {
+
+	private static final int INITIAL_BUCKET_CAPACITY = 4;
+	private static final int SHRINK_CAPACITY = 64;
+	private static final long[] EMPTY = new long[0];
+
+	private final long[][] buckets;
+	private final int[] sizes;
+
+	LongExpiryWheel(int wheelSize, long nowTick) {
+		super(wheelSize, nowTick);
+		buckets = new long[wheelSize][];
+		sizes = new int[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			buckets[i] = EMPTY;
+		}
+	}
+
+	/**
+	 * Registers the key to be visited once the given tick has been reached.
+	 */
+	void schedule(long key, long tick) {
+		int index = scheduleBucket(tick);
+		long[] bucket = buckets[index];
+		int size = sizes[index];
+		if (size == bucket.length) {
+			bucket = Arrays.copyOf(bucket, Math.max(size * 2, INITIAL_BUCKET_CAPACITY));
+			buckets[index] = bucket;
+		}
+		bucket[size] = key;
+		sizes[index] = size + 1;
+	}
+
+	/**
+	 * Advances the wheel up to the given tick, handing every key of the passed buckets to the visitor.
+	 * Keys the visitor wants to keep, due in a later round, stay in their bucket.
+	 */
+	void advance(long nowTick, Visitor visitor) {
+		advanceTo(nowTick, index -> {
+			long[] bucket = buckets[index];
+			int size = sizes[index];
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				if (visitor.keep(bucket[i], index)) {
+					bucket[kept++] = bucket[i];
+				}
+			}
+			sizes[index] = kept;
+			if (kept == 0 && bucket.length > SHRINK_CAPACITY) {
+				// give the memory of a peak back
+				buckets[index] = EMPTY;
+			}
+		});
+	}
+
+	@FunctionalInterface
+	interface Visitor {
+		/**
+		 * Returns true to keep the key in the given bucket for a later round, false to drop it.
+		 */
+		boolean keep(long key, int bucket);
+	}
+
+}
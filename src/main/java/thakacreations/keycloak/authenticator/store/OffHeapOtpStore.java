@@ -0,0 +1,393 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local OTP store keeping its entries outside the Java heap, in a fixed number of slots allocated up front
+ * in direct buffers. The entries are invisible to the garbage collector and the memory is capped at
+ * 40 bytes per slot.
+ * <p>
+ * Entries are encoded like in the {@link CompactOtpStore}. An entry lives in one of the {@value #WINDOW} slots
+ * following the home slot of its key. Writers claim a slot by a CAS on its state word and publish it with a
+ * new version, readers copy the slot optimistically and retry when the version changed meanwhile, so no locks
+ * are taken. A free slot is taken first, then an expired one. If the window only holds live codes of other keys,
+ * the new code is rejected like by a full {@link InMemoryOtpStore}, the codes of users in the middle of a login
+ * are never evicted.
+ * <p>
+ * Codes the slots cannot hold, longer than 8 digits or not numeric, are kept in an {@link InMemoryOtpStore} on
+ * the heap instead. Expired slots are reused by writers right away, the reaper frees them in bounded sweeps of
+ * {@value #SWEEP_SLOTS} slots per run, so a run never walks all the memory of a large store.
+ */
+public class OffHeapOtpStore implements OtpStoreProvider {
+
+	static final int WINDOW = 16;
+	static final int SWEEP_SLOTS = 1 << 16;
+
+	private static final int SLOT_SIZE = 40;
+	private static final int STATE = 0;
+	private static final int KEY1 = 8;
+	private static final int KEY2 = 16;
+	private static final int VALUE = 24;
+	// lifetime in the low, failed attempts in the high half
+	private static final int META = 32;
+
+	// the low bits of a state word, the others hold a version bumped by every write
+	private static final long FREE = 0;
+	private static final long BUSY = 1;
+	private static final long FULL = 2;
+	private static final long TAG_MASK = 3;
+	private static final long VERSION = 4;
+
+	private static final int CHUNK_BITS = 20;
+	private static final int CHUNK_SLOTS = 1 << CHUNK_BITS;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final ByteBuffer[] chunks;
+	private final int mask;
+	private final long seed1;
+	private final long seed2;
+	private final LongAdder size = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	// codes that cannot be packed, the code length is an authenticator setting
+	private final InMemoryOtpStore overflow = new InMemoryOtpStore();
+	// next slot of the sweep, only used by the reaper thread
+	private int sweepCursor;
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 */
+	public OffHeapOtpStore(int capacity) {
+		int slots = Integer.highestOneBit(Math.min(Math.max(capacity, WINDOW), MAX_CAPACITY) - 1) << 1;
+		mask = slots - 1;
+		chunks = new ByteBuffer[(slots + CHUNK_SLOTS - 1) >>> CHUNK_BITS];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = ByteBuffer.allocateDirect(Math.min(slots, CHUNK_SLOTS) * SLOT_SIZE).order(ByteOrder.nativeOrder());
+		}
+		SecureRandom random = new SecureRandom();
+		seed1 = random.nextLong();
+		seed2 = random.nextLong();
+	}
+
+	@Override
+	public boolean put(String realmId, String username, OtpEntry entry) {
+		if (CompactOtpStore.codeBits(entry) < 0) {
+			remove(realmId, username);
+			return overflow.put(realmId, username, entry);
+		}
+		if (overflow.size() > 0) {
+			overflow.remove(realmId, username);
+		}
+		long value = CompactOtpStore.pack(entry);
+		long meta = meta(entry, value);
+		long hash1 = CompactOtpStore.hash(seed1, realmId, username);
+		long hash2 = CompactOtpStore.hash(seed2, realmId, username);
+		long nowSeconds = Math.floorDiv(System.currentTimeMillis(), 1000);
+		int home = (int) hash2 & mask;
+		scan:
+		while (true) {
+			int free = -1;
+			long freeState = 0;
+			int expired = -1;
+			long expiredState = 0;
+			boolean busy = false;
+			for (int i = 0; i < WINDOW; i++) {
+				int slot = (home + i) & mask;
+				ByteBuffer chunk = chunk(slot);
+				int offset = offset(slot);
+				long state = (long) LONGS.getAcquire(chunk, offset + STATE);
+				long tag = state & TAG_MASK;
+				if (tag == FREE) {
+					if (free < 0) {
+						free = slot;
+						freeState = state;
+					}
+				} else if (tag == BUSY) {
+					busy = true;
+				} else {
+					long slotValue = (long) LONGS.get(chunk, offset + VALUE);
+					boolean matches = (long) LONGS.get(chunk, offset + KEY1) == hash1 && (long) LONGS.get(chunk, offset + KEY2) == hash2;
+					VarHandle.loadLoadFence();
+					if ((long) LONGS.getVolatile(chunk, offset + STATE) != state) {
+						continue scan;
+					}
+					if (matches) {
+						// replace the code in place
+						if (write(slot, state, hash1, hash2, value, meta)) {
+							return true;
+						}
+						continue scan;
+					}
+					if (slotValue >>> CompactOtpStore.EXPIRY_SHIFT < nowSeconds && expired < 0) {
+						expired = slot;
+						expiredState = state;
+					}
+				}
+			}
+			if (free < 0 && expired < 0) {
+				if (busy) {
+					// a slot being written may be freed or hold the key, try again
+					Thread.onSpinWait();
+					continue;
+				}
+				rejections.increment();
+				return false;
+			}
+			// the CAS expects the state seen by the scan, a slot written meanwhile is never overwritten unseen
+			if (free >= 0) {
+				if (write(free, freeState, hash1, hash2, value, meta)) {
+					size.increment();
+					return true;
+				}
+			} else if (write(expired, expiredState, hash1, hash2, value, meta)) {
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public OtpEntry get(String realmId, String username) {
+		long hash1 = CompactOtpStore.hash(seed1, realmId, username);
+		long hash2 = CompactOtpStore.hash(seed2, realmId, username);
+		int home = (int) hash2 & mask;
+		long latestValue = 0;
+		long latestMeta = 0;
+		boolean found = false;
+		for (int i = 0; i < WINDOW; i++) {
+			int slot = (home + i) & mask;
+			ByteBuffer chunk = chunk(slot);
+			int offset = offset(slot);
+			while (true) {
+				long state = (long) LONGS.getAcquire(chunk, offset + STATE);
+				long tag = state & TAG_MASK;
+				if (tag == FREE) {
+					break;
+				}
+				if (tag == BUSY) {
+					Thread.onSpinWait();
+					continue;
+				}
+				long key1 = (long) LONGS.get(chunk, offset + KEY1);
+				long key2 = (long) LONGS.get(chunk, offset + KEY2);
+				long value = (long) LONGS.get(chunk, offset + VALUE);
+				long meta = (long) LONGS.get(chunk, offset + META);
+				VarHandle.loadLoadFence();
+				if ((long) LONGS.getVolatile(chunk, offset + STATE) != state) {
+					continue;
+				}
+				// concurrent first puts of one key may both claim a slot, the later expiry wins
+				if (key1 == hash1 && key2 == hash2 && (!found || value >>> CompactOtpStore.EXPIRY_SHIFT > latestValue >>> CompactOtpStore.EXPIRY_SHIFT)) {
+					latestValue = value;
+					latestMeta = meta;
+					found = true;
+				}
+				break;
+			}
+		}
+		if (!found) {
+			return overflow.size() > 0 ? overflow.get(realmId, username) : null;
+		}
+		return CompactOtpStore.unpack(latestValue, (int) latestMeta, (int) (latestMeta >>> Integer.SIZE));
+	}
+
+	@Override
+	public void remove(String realmId, String username) {
+		long hash1 = CompactOtpStore.hash(seed1, realmId, username);
+		long hash2 = CompactOtpStore.hash(seed2, realmId, username);
+		int home = (int) hash2 & mask;
+		for (int i = 0; i < WINDOW; i++) {
+			int slot = (home + i) & mask;
+			ByteBuffer chunk = chunk(slot);
+			int offset = offset(slot);
+			while (true) {
+				long state = (long) LONGS.getAcquire(chunk, offset + STATE);
+				long tag = state & TAG_MASK;
+				if (tag == FREE) {
+					break;
+				}
+				if (tag == BUSY) {
+					Thread.onSpinWait();
+					continue;
+				}
+				boolean matches = (long) LONGS.get(chunk, offset + KEY1) == hash1 && (long) LONGS.get(chunk, offset + KEY2) == hash2;
+				VarHandle.loadLoadFence();
+				if ((long) LONGS.getVolatile(chunk, offset + STATE) != state) {
+					continue;
+				}
+				if (!matches || free(slot, state)) {
+					break;
+				}
+			}
+		}
+		if (overflow.size() > 0) {
+			overflow.remove(realmId, username);
+		}
+	}
+
+	@Override
+	public OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		long hash1 = CompactOtpStore.hash(seed1, realmId, username);
+		long hash2 = CompactOtpStore.hash(seed2, realmId, username);
+		long entered = CompactOtpStore.codeBits(code);
+		int home = (int) hash2 & mask;
+		// every slot of the key, concurrent first puts may both have claimed one
+		int[] matching = new int[WINDOW];
+		long[] matchingStates = new long[WINDOW];
+		scan:
+		while (true) {
+			int matches = 0;
+			int latest = -1;
+			long latestState = 0;
+			long latestValue = 0;
+			long latestMeta = 0;
+			for (int i = 0; i < WINDOW; i++) {
+				int slot = (home + i) & mask;
+				ByteBuffer chunk = chunk(slot);
+				int offset = offset(slot);
+				long state = (long) LONGS.getAcquire(chunk, offset + STATE);
+				long tag = state & TAG_MASK;
+				if (tag == BUSY) {
+					Thread.onSpinWait();
+					continue scan;
+				}
+				if (tag == FREE) {
+					continue;
+				}
+				boolean match = (long) LONGS.get(chunk, offset + KEY1) == hash1 && (long) LONGS.get(chunk, offset + KEY2) == hash2;
+				long value = (long) LONGS.get(chunk, offset + VALUE);
+				long meta = (long) LONGS.get(chunk, offset + META);
+				VarHandle.loadLoadFence();
+				if ((long) LONGS.getVolatile(chunk, offset + STATE) != state) {
+					continue scan;
+				}
+				if (!match) {
+					continue;
+				}
+				matching[matches] = slot;
+				matchingStates[matches++] = state;
+				if (latest < 0 || value >>> CompactOtpStore.EXPIRY_SHIFT > latestValue >>> CompactOtpStore.EXPIRY_SHIFT) {
+					latest = slot;
+					latestState = state;
+					latestValue = value;
+					latestMeta = meta;
+				}
+			}
+			if (latest < 0) {
+				return overflow.size() > 0 ? overflow.verifyAndConsume(realmId, username, code, now, maxAttempts) : OtpVerification.NOT_FOUND;
+			}
+			long attempts = latestMeta >>> Integer.SIZE;
+			if (maxAttempts > 0 && attempts >= maxAttempts) {
+				return OtpVerification.LOCKED;
+			}
+			if (entered < 0 || (latestValue & CompactOtpStore.CODE_FIELD_MASK) != entered) {
+				// counted by republishing the slot, a concurrent change makes the CAS fail and the window is read again
+				if (write(latest, latestState, hash1, hash2, latestValue, latestMeta + (1L << Integer.SIZE))) {
+					return maxAttempts > 0 && attempts + 1 >= maxAttempts ? OtpVerification.LOCKED : OtpVerification.INVALID;
+				}
+				continue;
+			}
+			if (latestValue >>> CompactOtpStore.EXPIRY_SHIFT < Math.floorDiv(now, 1000)) {
+				return OtpVerification.EXPIRED;
+			}
+			// the CAS fails if another request consumed or replaced the code meanwhile, the window is read again
+			if (free(latest, latestState)) {
+				// an older duplicate would become visible otherwise, slots rewritten since the scan are kept
+				for (int i = 0; i < matches; i++) {
+					if (matching[i] != latest) {
+						free(matching[i], matchingStates[i]);
+					}
+				}
+				return OtpVerification.VALID;
+			}
+		}
+	}
+
+	public long size() {
+		return size.sum() + overflow.size();
+	}
+
+	/**
+	 * New codes not admitted because the slots around their key were all taken by live codes.
+	 */
+	public long rejections() {
+		return rejections.sum();
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Frees the slots of expired entries among the next {@value #SWEEP_SLOTS} slots, the sweep wraps around.
+	 * Returns the number of freed slots. Must only be called from a single thread.
+	 */
+	int expireEntries(long now) {
+		long nowSeconds = Math.floorDiv(now, 1000);
+		int expired = 0;
+		int from = sweepCursor;
+		int slots = Math.min(SWEEP_SLOTS, mask + 1);
+		sweepCursor = (from + slots) & mask;
+		for (int i = 0; i < slots; i++) {
+			int slot = (from + i) & mask;
+			ByteBuffer chunk = chunk(slot);
+			int offset = offset(slot);
+			long state = (long) LONGS.getAcquire(chunk, offset + STATE);
+			if ((state & TAG_MASK) != FULL) {
+				continue;
+			}
+			long value = (long) LONGS.get(chunk, offset + VALUE);
+			VarHandle.loadLoadFence();
+			if ((long) LONGS.getVolatile(chunk, offset + STATE) == state
+				&& value >>> CompactOtpStore.EXPIRY_SHIFT < nowSeconds && free(slot, state)) {
+				expired++;
+			}
+		}
+		return expired + overflow.expireEntries(now);
+	}
+
+	/**
+	 * Claims the slot if it still has the given state and publishes the entry, false if another thread was faster.
+	 */
+	private boolean write(int slot, long state, long hash1, long hash2, long value, long meta) {
+		ByteBuffer chunk = chunk(slot);
+		int offset = offset(slot);
+		long version = (state & ~TAG_MASK) + VERSION;
+		if (!LONGS.compareAndSet(chunk, offset + STATE, state, version | BUSY)) {
+			return false;
+		}
+		LONGS.set(chunk, offset + KEY1, hash1);
+		LONGS.set(chunk, offset + KEY2, hash2);
+		LONGS.set(chunk, offset + VALUE, value);
+		LONGS.set(chunk, offset + META, meta);
+		LONGS.setRelease(chunk, offset + STATE, version + VERSION | FULL);
+		return true;
+	}
+
+	private boolean free(int slot, long state) {
+		if (!LONGS.compareAndSet(chunk(slot), offset(slot) + STATE, state, (state & ~TAG_MASK) + VERSION | FREE)) {
+			return false;
+		}
+		size.decrement();
+		return true;
+	}
+
+	private static long meta(OtpEntry entry, long value) {
+		long lifetime = Math.min(Math.max((value >>> CompactOtpStore.EXPIRY_SHIFT) - Math.floorDiv(entry.getIssuedTime(), 1000), 0), Integer.MAX_VALUE);
+		return (long) Math.max(entry.getAttempts(), 0) << Integer.SIZE | lifetime;
+	}
+
+	private ByteBuffer chunk(int slot) {
+		return chunks[slot >>> CHUNK_BITS];
+	}
+
+	private static int offset(int slot) {
+		return (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+	}
+
+}
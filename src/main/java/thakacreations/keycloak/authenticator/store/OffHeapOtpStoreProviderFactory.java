@@ -0,0 +1,88 @@
+package thakacreations.keycloak.authenticator.store;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import com.google.auto.service.AutoService;
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@AutoService(OtpStoreProviderFactory.class)
+public class OffHeapOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+	public static final String PROVIDER_ID = "offheap";
+
+	private static final Logger log = Logger.getLogger(OffHeapOtpStoreProviderFactory.class);
+
+	private static final long REAPER_INTERVAL_MILLIS = 1000;
+	private static final int DEFAULT_CAPACITY = 1 << 20;
+
+	private int capacity;
+	private volatile OffHeapOtpStore store;
+
+	private ScheduledExecutorService reaper;
+
+	@Override
+	public OtpStoreProvider create(KeycloakSession session) {
+		OffHeapOtpStore current = store;
+		if (current == null) {
+			synchronized (this) {
+				current = store;
+				if (current == null) {
+					// the slots are allocated on first use, so the memory is only taken when the store is selected
+					current = new OffHeapOtpStore(capacity);
+					log.infof("Allocated %d off-heap OTP slots", current.capacity());
+					register(current);
+					store = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	@Override
+	public void init(Config.Scope config) {
+		capacity = config.getInt("capacity", DEFAULT_CAPACITY);
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+	}
+
+	private void register(OffHeapOtpStore store) {
+		SmsMetrics.otpStoreSize(PROVIDER_ID, store, OffHeapOtpStore::size);
+		SmsMetrics.otpStoreRejections(PROVIDER_ID, store, OffHeapOtpStore::rejections);
+		reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sms-otp-offheap-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reaper.scheduleAtFixedRate(() -> {
+			try {
+				long start = System.nanoTime();
+				int expired = store.expireEntries(System.currentTimeMillis());
+				SmsMetrics.otpCleanup(PROVIDER_ID, System.nanoTime() - start, expired);
+			} catch (RuntimeException e) {
+				log.warn("Failed to expire OTP entries", e);
+			}
+		}, REAPER_INTERVAL_MILLIS, REAPER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void close() {
+		if (reaper != null) {
+			reaper.shutdownNow();
+			reaper = null;
+		}
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+}
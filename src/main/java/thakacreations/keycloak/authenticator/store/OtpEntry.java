@@ -0,0 +1,139 @@
+package thakacreations.keycloak.authenticator.store;
+
+import thakacreations.keycloak.authenticator.OtpCodeGenerator;
+
+/**
+ * An issued OTP together with its issue and expiry times in epoch millis and the number of failed attempts
+ * to enter it. A numeric code is kept as digits and only formatted once its text is asked for, the stores
+ * packing codes into primitives never need it.
+ */
+public class OtpEntry {
+
+	// formatted on first use for numeric codes
+	private String code;
+	// -1 for codes given as text
+	private final long digits;
+	private final int length;
+	private final long issuedTime;
+	private final long expiryTime;
+	private final int attempts;
+
+	public OtpEntry(String code, long issuedTime, long expiryTime) {
+		this(code, issuedTime, expiryTime, 0);
+	}
+
+	public OtpEntry(String code, long issuedTime, long expiryTime, int attempts) {
+		this(code, -1, code != null ? code.length() : 0, issuedTime, expiryTime, attempts);
+	}
+
+	/**
+	 * A numeric code of the given number of digits, leading zeros included.
+	 */
+	public OtpEntry(long digits, int length, long issuedTime, long expiryTime) {
+		this(digits, length, issuedTime, expiryTime, 0);
+	}
+
+	public OtpEntry(long digits, int length, long issuedTime, long expiryTime, int attempts) {
+		this(null, digits, length, issuedTime, expiryTime, attempts);
+	}
+
+	private OtpEntry(String code, long digits, int length, long issuedTime, long expiryTime, int attempts) {
+		this.code = code;
+		this.digits = digits;
+		this.length = length;
+		this.issuedTime = issuedTime;
+		this.expiryTime = expiryTime;
+		this.attempts = attempts;
+	}
+
+	public String getCode() {
+		String text = code;
+		if (text == null && digits >= 0) {
+			text = OtpCodeGenerator.format(digits, length);
+			code = text;
+		}
+		return text;
+	}
+
+	/**
+	 * Digits of a numeric code, -1 if the code was given as text.
+	 */
+	public long getCodeDigits() {
+		return digits;
+	}
+
+	public int getCodeLength() {
+		return length;
+	}
+
+	/**
+	 * Whether the entered code is this one, a numeric code is compared without formatting it.
+	 */
+	public boolean matches(String entered) {
+		if (entered == null) {
+			return false;
+		}
+		if (digits >= 0) {
+			return OtpCodeGenerator.parse(entered, length) == digits;
+		}
+		return entered.equals(code);
+	}
+
+	public long getIssuedTime() {
+		return issuedTime;
+	}
+
+	public long getExpiryTime() {
+		return expiryTime;
+	}
+
+	/**
+	 * Failed attempts to enter the code
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public boolean isExpired(long now) {
+		return now > expiryTime;
+	}
+
+	/**
+	 * Whether the code has been invalidated by too many failed attempts, never with maxAttempts 0.
+	 */
+	public boolean isLocked(int maxAttempts) {
+		return maxAttempts > 0 && attempts >= maxAttempts;
+	}
+
+	public OtpEntry withFailedAttempt() {
+		return new OtpEntry(code, digits, length, issuedTime, expiryTime, attempts + 1);
+	}
+
+	/**
+	 * String form used by the remote stores, format: expiryTime:issuedTime:attempts:code
+	 */
+	public String encode() {
+		return expiryTime + ":" + issuedTime + ":" + attempts + ":" + getCode();
+	}
+
+	public static OtpEntry decode(String value) {
+		if (value == null) {
+			return null;
+		}
+		int first = value.indexOf(':');
+		int second = value.indexOf(':', first + 1);
+		long expiryTime = Long.parseLong(value.substring(0, first));
+		if (second < 0) {
+			// expiryTime:code, written before the issue time was stored
+			return new OtpEntry(value.substring(first + 1), 0, expiryTime);
+		}
+		long issuedTime = Long.parseLong(value.substring(first + 1, second));
+		int third = value.indexOf(':', second + 1);
+		if (third < 0) {
+			// expiryTime:issuedTime:code, written before the attempts were stored
+			return new OtpEntry(value.substring(second + 1), issuedTime, expiryTime);
+		}
+		return new OtpEntry(value.substring(third + 1), issuedTime, expiryTime, Integer.parseInt(value.substring(second + 1, third)));
+	}
+
+}
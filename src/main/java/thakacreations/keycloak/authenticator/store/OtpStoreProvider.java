@@ -0,0 +1,74 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.keycloak.provider.Provider;
+
+/**
+ * Storage of the issued OTPs, shared by all requests of a realm user.
+ * Entries are keyed by realm id and username and disappear once expired.
+ */
+public interface OtpStoreProvider extends Provider {
+
+	/**
+	 * Stores the code, replacing the previous one of the user. Returns false if a bounded store has not admitted
+	 * the code, it must not be sent then.
+	 */
+	boolean put(String realmId, String username, OtpEntry entry);
+
+	OtpEntry get(String realmId, String username);
+
+	void remove(String realmId, String username);
+
+	/**
+	 * Checks the entered code against the stored one in one atomic step: the entry is removed if the code
+	 * matches and has not expired, a wrong code counts as a failed attempt, and after maxAttempts failures
+	 * (0 for no limit) the code is locked. Of concurrent requests with the right code exactly one gets VALID.
+	 * The default implementation is not atomic, the stores of this module override it.
+	 */
+	default OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		OtpEntry entry = get(realmId, username);
+		OtpVerification verification = verify(entry, code, now, maxAttempts);
+		if (verification == OtpVerification.VALID) {
+			remove(realmId, username);
+		} else if (verification == OtpVerification.INVALID) {
+			OtpEntry failed = entry.withFailedAttempt();
+			put(realmId, username, failed);
+			return afterFailure(failed, maxAttempts);
+		}
+		return verification;
+	}
+
+	/**
+	 * Outcome of checking the code against the entry, without consuming it or counting the attempt.
+	 */
+	static OtpVerification verify(OtpEntry entry, String code, long now, int maxAttempts) {
+		if (entry == null) {
+			return OtpVerification.NOT_FOUND;
+		}
+		if (entry.isLocked(maxAttempts)) {
+			return OtpVerification.LOCKED;
+		}
+		if (!entry.matches(code)) {
+			return OtpVerification.INVALID;
+		}
+		return entry.isExpired(now) ? OtpVerification.EXPIRED : OtpVerification.VALID;
+	}
+
+	/**
+	 * Outcome of a wrong code, given the entry with the failed attempt counted.
+	 */
+	static OtpVerification afterFailure(OtpEntry failed, int maxAttempts) {
+		return failed.isLocked(maxAttempts) ? OtpVerification.LOCKED : OtpVerification.INVALID;
+	}
+
+	/**
+	 * Key format: realmId:username
+	 */
+	static String key(String realmId, String username) {
+		return realmId + ":" + username;
+	}
+
+	@Override
+	default void close() {
+	}
+
+}
@@ -0,0 +1,14 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.keycloak.provider.ProviderFactory;
+
+public interface OtpStoreProviderFactory extends ProviderFactory<OtpStoreProvider> {
+
+	/**
+	 * Whether the codes are shared by all nodes and outlive the restart of one.
+	 */
+	default boolean isClusterWide() {
+		return false;
+	}
+
+}
@@ -0,0 +1,33 @@
+package thakacreations.keycloak.authenticator.store;
+
+import com.google.auto.service.AutoService;
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+@AutoService(Spi.class)
+public class OtpStoreSpi implements Spi {
+
+	public static final String NAME = "sms-otp-store";
+
+	@Override
+	public boolean isInternal() {
+		return false;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public Class<? extends Provider> getProviderClass() {
+		return OtpStoreProvider.class;
+	}
+
+	@Override
+	public Class<? extends ProviderFactory<OtpStoreProvider>> getProviderFactoryClass() {
+		return OtpStoreProviderFactory.class;
+	}
+
+}
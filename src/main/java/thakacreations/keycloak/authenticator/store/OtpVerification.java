@@ -0,0 +1,19 @@
+package thakacreations.keycloak.authenticator.store;
+
+/**
+ * Outcome of {@link OtpStoreProvider#verifyAndConsume}.
+ */
+public enum OtpVerification {
+
+	/** The code matched and has been removed, no other request can use it again. */
+	VALID,
+	/** The code did not match, the entry is kept with one more failed attempt. */
+	INVALID,
+	/** The code matched but has expired. */
+	EXPIRED,
+	/** No code has been issued or it has already been used. */
+	NOT_FOUND,
+	/** Too many failed attempts, the code stays invalid until it expires or a new one is issued. */
+	LOCKED
+
+}
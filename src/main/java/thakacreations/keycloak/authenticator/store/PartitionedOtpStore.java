@@ -0,0 +1,125 @@
+package thakacreations.keycloak.authenticator.store;
+
+import thakacreations.keycloak.authenticator.metrics.SmsMetrics;
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node-local OTP store split into one {@link InMemoryOtpStore} per realm, created with the first code issued
+ * in the realm and dropped when the realm is removed. Every partition has its own bounds, expiry task and
+ * meters, so a busy realm neither evicts the codes of other realms nor holds up their expiry runs.
+ */
+public class PartitionedOtpStore implements OtpStoreProvider {
+
+	private static final Logger log = Logger.getLogger(PartitionedOtpStore.class);
+
+	private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+	private final int maxEntries;
+	private final long maxBytes;
+	private final ScheduledExecutorService reaper;
+	private final long reaperIntervalMillis;
+
+	/**
+	 * @param maxEntries maximum number of entries per realm, 0 for no limit
+	 * @param maxBytes maximum estimated heap use per realm, 0 for no limit
+	 */
+	public PartitionedOtpStore(int maxEntries, long maxBytes, ScheduledExecutorService reaper, long reaperIntervalMillis) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.reaper = reaper;
+		this.reaperIntervalMillis = reaperIntervalMillis;
+	}
+
+	@Override
+	public boolean put(String realmId, String username, OtpEntry entry) {
+		return partitions.computeIfAbsent(realmId, this::createPartition).store.put(realmId, username, entry);
+	}
+
+	@Override
+	public OtpEntry get(String realmId, String username) {
+		Partition partition = partitions.get(realmId);
+		return partition != null ? partition.store.get(realmId, username) : null;
+	}
+
+	@Override
+	public void remove(String realmId, String username) {
+		Partition partition = partitions.get(realmId);
+		if (partition != null) {
+			partition.store.remove(realmId, username);
+		}
+	}
+
+	@Override
+	public OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		Partition partition = partitions.get(realmId);
+		return partition != null ? partition.store.verifyAndConsume(realmId, username, code, now, maxAttempts) : OtpVerification.NOT_FOUND;
+	}
+
+	public int size() {
+		int size = 0;
+		for (Partition partition : partitions.values()) {
+			size += partition.store.size();
+		}
+		return size;
+	}
+
+	int partitionCount() {
+		return partitions.size();
+	}
+
+	InMemoryOtpStore partition(String realmId) {
+		Partition partition = partitions.get(realmId);
+		return partition != null ? partition.store : null;
+	}
+
+	/**
+	 * Drops the codes, expiry task and meters of a removed realm.
+	 */
+	public void dropPartition(String realmId) {
+		Partition partition = partitions.remove(realmId);
+		if (partition != null) {
+			partition.task.cancel(false);
+			SmsMetrics.removeRealm(realmId);
+			log.debugf("Dropped the OTP partition of realm %s with %d codes", realmId, partition.store.size());
+		}
+	}
+
+	public void close() {
+		for (String realmId : partitions.keySet()) {
+			dropPartition(realmId);
+		}
+	}
+
+	private Partition createPartition(String realmId) {
+		InMemoryOtpStore store = new InMemoryOtpStore(maxEntries, maxBytes);
+		LongAdder expired = new LongAdder();
+		ScheduledFuture<?> task = reaper.scheduleAtFixedRate(() -> {
+			try {
+				long start = System.nanoTime();
+				int count = store.expireEntries(System.currentTimeMillis());
+				expired.add(count);
+				SmsMetrics.otpCleanup(InMemoryOtpStoreProviderFactory.PROVIDER_ID, System.nanoTime() - start, count);
+			} catch (RuntimeException e) {
+				log.warnf(e, "Failed to expire OTP entries of realm %s", realmId);
+			}
+		}, reaperIntervalMillis, reaperIntervalMillis, TimeUnit.MILLISECONDS);
+		SmsMetrics.otpPartitionGauge("size", "OTP codes held for the realm by the local store", realmId, store, InMemoryOtpStore::size);
+		SmsMetrics.otpPartitionCounter("expired", "OTP codes of the realm removed after their expiry", realmId, expired, LongAdder::sum);
+		if (store.isBounded()) {
+			SmsMetrics.otpPartitionGauge("bytes", "Estimated memory used by the realm's codes", realmId, store, InMemoryOtpStore::bytes);
+			SmsMetrics.otpPartitionCounter("evictions", "OTP codes of the realm evicted before their expiry", realmId, store, InMemoryOtpStore::evictions);
+			SmsMetrics.otpPartitionCounter("rejections", "New OTP codes of the realm not admitted to its full partition", realmId, store, InMemoryOtpStore::rejections);
+		}
+		return new Partition(store, task);
+	}
+
+	private record Partition(InMemoryOtpStore store, ScheduledFuture<?> task) {
+	}
+
+}
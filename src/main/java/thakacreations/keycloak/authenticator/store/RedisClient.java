@@ -0,0 +1,199 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Minimal client for the Redis serialization protocol (RESP2), just enough for the OTP store.
+ * Works against Redis, Valkey, KeyDB or any embedded stand-in speaking the same protocol.
+ * Connections are pooled and dropped on any I/O error or unparsable reply. A command failing on a pooled connection
+ * the server has closed meanwhile, e.g. after its idle timeout, is sent once more on a new connection.
+ */
+class RedisClient implements Closeable {
+
+	private final String host;
+	private final int port;
+	private final String password;
+	private final int database;
+	private final int timeoutMillis;
+	private final BlockingQueue<Connection> idle;
+
+	RedisClient(String host, int port, String password, int database, int timeoutMillis, int maxIdle) {
+		this.host = host;
+		this.port = port;
+		this.password = password;
+		this.database = database;
+		this.timeoutMillis = timeoutMillis;
+		this.idle = new ArrayBlockingQueue<>(maxIdle);
+	}
+
+	/**
+	 * Sends a command and returns its reply: String for simple and bulk strings, Long for integers,
+	 * null for nil replies. Error replies are thrown as RedisException.
+	 */
+	Object execute(String... command) throws IOException {
+		Connection pooled = idle.poll();
+		if (pooled != null) {
+			try {
+				return execute(pooled, command);
+			} catch (EOFException | SocketException e) {
+				// closed by the server before it answered, a timeout is not retried as the command may have run
+			}
+		}
+		return execute(open(), command);
+	}
+
+	private Object execute(Connection connection, String... command) throws IOException {
+		boolean inSync = false;
+		try {
+			Object reply = connection.execute(command);
+			inSync = true;
+			return reply;
+		} catch (RedisException e) {
+			// an error reply leaves the connection in sync, keep it
+			inSync = true;
+			throw e;
+		} finally {
+			if (!inSync || !idle.offer(connection)) {
+				connection.close();
+			}
+		}
+	}
+
+	private Connection open() throws IOException {
+		Connection connection = new Connection();
+		try {
+			if (password != null && !password.isEmpty()) {
+				connection.execute("AUTH", password);
+			}
+			if (database != 0) {
+				connection.execute("SELECT", Integer.toString(database));
+			}
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+
+	@Override
+	public void close() {
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.close();
+		}
+	}
+
+	static class RedisException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RedisException(String message) {
+			super(message);
+		}
+	}
+
+	private class Connection {
+
+		private final Socket socket;
+		private final OutputStream out;
+		private final InputStream in;
+
+		Connection() throws IOException {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.setTcpNoDelay(true);
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = new BufferedInputStream(socket.getInputStream());
+		}
+
+		Object execute(String... command) throws IOException {
+			writeCommand(command);
+			Object reply = readReply();
+			if (reply instanceof RedisException e) {
+				// the connection is still usable after an error reply
+				throw new RedisException(e.getMessage());
+			}
+			return reply;
+		}
+
+		private void writeCommand(String... command) throws IOException {
+			out.write('*');
+			writeLine(Integer.toString(command.length));
+			for (String argument : command) {
+				byte[] bytes = argument.getBytes(StandardCharsets.UTF_8);
+				out.write('$');
+				writeLine(Integer.toString(bytes.length));
+				out.write(bytes);
+				out.write('\r');
+				out.write('\n');
+			}
+			out.flush();
+		}
+
+		private void writeLine(String line) throws IOException {
+			out.write(line.getBytes(StandardCharsets.US_ASCII));
+			out.write('\r');
+			out.write('\n');
+		}
+
+		private Object readReply() throws IOException {
+			int type = in.read();
+			switch (type) {
+				case '+':
+					return readLine();
+				case '-':
+					return new RedisException(readLine());
+				case ':':
+					return Long.parseLong(readLine());
+				case '$': {
+					int length = Integer.parseInt(readLine());
+					if (length < 0) {
+						return null;
+					}
+					byte[] bytes = in.readNBytes(length + 2);
+					if (bytes.length < length + 2) {
+						throw new EOFException("Unexpected end of Redis reply");
+					}
+					return new String(bytes, 0, length, StandardCharsets.UTF_8);
+				}
+				case -1:
+					throw new EOFException("Redis connection closed");
+				default:
+					throw new IOException("Unsupported Redis reply type: " + (char) type);
+			}
+		}
+
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\r') {
+				if (c == -1) {
+					throw new EOFException("Unexpected end of Redis reply");
+				}
+				line.append((char) c);
+			}
+			in.read(); // '\n'
+			return line.toString();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Cluster-wide OTP store on a Redis-protocol server, expiry is delegated to the server.
+ */
+public class RedisOtpStore implements OtpStoreProvider {
+
+	// checks and counts or deletes in one server-side step, replies with the ordinal of the OtpVerification
+	private static final String VERIFY_AND_CONSUME_SCRIPT = String.join("\n",
+		"local v = redis.call('GET', KEYS[1])",
+		"if not v then return 3 end",
+		"local parts = {}",
+		"for part in string.gmatch(v, '[^:]+') do parts[#parts + 1] = part end",
+		"local attempts = #parts == 4 and tonumber(parts[3]) or 0",
+		"local max = tonumber(ARGV[3])",
+		"if max > 0 and attempts >= max then return 4 end",
+		"if parts[#parts] ~= ARGV[1] then",
+		"  attempts = attempts + 1",
+		"  local ttl = redis.call('PTTL', KEYS[1])",
+		"  local issued = #parts >= 3 and parts[2] or '0'",
+		"  if ttl > 0 then redis.call('SET', KEYS[1], parts[1] .. ':' .. issued .. ':' .. attempts .. ':' .. parts[#parts], 'PX', ttl) end",
+		"  if max > 0 and attempts >= max then return 4 end",
+		"  return 1",
+		"end",
+		"if tonumber(ARGV[2]) > tonumber(parts[1]) then return 2 end",
+		"redis.call('DEL', KEYS[1])",
+		"return 0");
+
+	// the server caches scripts by the SHA-1 of their body, the same digest SCRIPT LOAD would reply
+	private static final String VERIFY_AND_CONSUME_SHA = sha1(VERIFY_AND_CONSUME_SCRIPT);
+
+	private final RedisClient client;
+	private final String keyPrefix;
+
+	RedisOtpStore(RedisClient client, String keyPrefix) {
+		this.client = client;
+		this.keyPrefix = keyPrefix;
+	}
+
+	@Override
+	public boolean put(String realmId, String username, OtpEntry entry) {
+		long ttl = Math.max(entry.getExpiryTime() - System.currentTimeMillis(), 1);
+		execute("SET", redisKey(realmId, username), entry.encode(), "PX", Long.toString(ttl));
+		return true;
+	}
+
+	@Override
+	public OtpEntry get(String realmId, String username) {
+		return OtpEntry.decode((String) execute("GET", redisKey(realmId, username)));
+	}
+
+	@Override
+	public void remove(String realmId, String username) {
+		execute("DEL", redisKey(realmId, username));
+	}
+
+	@Override
+	public OtpVerification verifyAndConsume(String realmId, String username, String code, long now, int maxAttempts) {
+		String key = redisKey(realmId, username);
+		String entered = code != null ? code : "";
+		Object reply;
+		try {
+			// only the digest is sent, the script body just once per server after a restart or SCRIPT FLUSH
+			reply = client.execute("EVALSHA", VERIFY_AND_CONSUME_SHA, "1", key, entered, Long.toString(now), Integer.toString(maxAttempts));
+		} catch (RedisClient.RedisException e) {
+			if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+				throw new UncheckedIOException("Redis command EVALSHA failed", e);
+			}
+			// EVAL runs the script and adds it to the server's script cache
+			reply = execute("EVAL", VERIFY_AND_CONSUME_SCRIPT, "1", key, entered, Long.toString(now), Integer.toString(maxAttempts));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Redis command EVALSHA failed", e);
+		}
+		return OtpVerification.values()[((Long) reply).intValue()];
+	}
+
+	private String redisKey(String realmId, String username) {
+		return keyPrefix + OtpStoreProvider.key(realmId, username);
+	}
+
+	private static String sha1(String script) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private Object execute(String... command) {
+		try {
+			return client.execute(command);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Redis command " + command[0] + " failed", e);
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package thakacreations.keycloak.authenticator.store;
+
+import com.google.auto.service.AutoService;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+@AutoService(OtpStoreProviderFactory.class)
+public class RedisOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+	public static final String PROVIDER_ID = "redis";
+
+	private RedisClient client;
+	private RedisOtpStore store;
+
+	@Override
+	public OtpStoreProvider create(KeycloakSession session) {
+		return store;
+	}
+
+	@Override
+	public void init(Config.Scope config) {
+		client = new RedisClient(
+			config.get("host", "localhost"),
+			config.getInt("port", 6379),
+			config.get("password"),
+			config.getInt("database", 0),
+			config.getInt("timeout", 2000),
+			config.getInt("maxIdle", 16));
+		store = new RedisOtpStore(client, config.get("keyPrefix", "sms-otp:"));
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+	}
+
+	@Override
+	public void close() {
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	@Override
+	public boolean isClusterWide() {
+		return true;
+	}
+
+	@Override
+	public String getId() {
+		return PROVIDER_ID;
+	}
+
+}
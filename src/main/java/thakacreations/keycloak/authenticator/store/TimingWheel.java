@@ -0,0 +1,58 @@
+package thakacreations.keycloak.authenticator.store;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Bucket arithmetic shared by the hashed timing wheels: a deadline tick lands in bucket {@code tick & mask},
+ * never in one whose tick has already passed, and advancing walks the buckets of the passed ticks, at most one
+ * revolution. The buckets themselves are kept by the subclasses.
+ */
+abstract class TimingWheel {
+
+	final int mask;
+
+	private volatile long lastTick;
+
+	TimingWheel(int wheelSize, long nowTick) {
+		if (wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+			throw new IllegalArgumentException("wheelSize must be a power of two");
+		}
+		this.mask = wheelSize - 1;
+		this.lastTick = nowTick;
+	}
+
+	/**
+	 * Bucket a deadline at the given tick is scheduled into, the next tick's if the deadline has passed.
+	 */
+	final int scheduleBucket(long tick) {
+		return index(Math.max(tick, lastTick + 1));
+	}
+
+	/**
+	 * Bucket of the given tick, wrapping around every revolution.
+	 */
+	final int index(long tick) {
+		return (int) (tick & mask);
+	}
+
+	/**
+	 * Last tick the wheel has been advanced to.
+	 */
+	final long lastTick() {
+		return lastTick;
+	}
+
+	/**
+	 * Hands the bucket of every tick passed since the last call, up to the given one, to the consumer.
+	 * Must only be called from a single thread.
+	 */
+	final void advanceTo(long nowTick, IntConsumer bucket) {
+		long tick = lastTick;
+		// never walk more than one full revolution, every bucket has been visited by then
+		for (long t = Math.max(tick + 1, nowTick - mask); t <= nowTick; t++) {
+			bucket.accept(index(t));
+		}
+		lastTick = Math.max(tick, nowTick);
+	}
+
+}
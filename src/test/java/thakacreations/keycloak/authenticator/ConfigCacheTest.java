@@ -0,0 +1,79 @@
+package thakacreations.keycloak.authenticator;
+
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class ConfigCacheTest {
+
+	private final AtomicInteger built = new AtomicInteger();
+	private long now = 1_000_000;
+	private final ConfigCache<Map<String, String>> cache = new ConfigCache<>(config -> {
+		built.incrementAndGet();
+		return Map.copyOf(config);
+	}, () -> now);
+
+	@Test
+	void reusesTheValueOfAnUnchangedConfiguration() {
+		Map<String, String> value = cache.get(config("config", Map.of(SmsConstants.CODE_LENGTH, "6")));
+		// Keycloak hands out a new model and map per request
+		assertSame(value, cache.get(config("config", Map.of(SmsConstants.CODE_LENGTH, "6"))));
+		assertEquals(1, built.get());
+	}
+
+	@Test
+	void rebuildsTheValueOfAChangedConfiguration() {
+		AuthenticatorConfigModel config = config("config", Map.of(SmsConstants.CODE_LENGTH, "6"));
+		cache.get(config);
+		// changed in place
+		config.getConfig().put(SmsConstants.CODE_LENGTH, "8");
+		assertEquals(Map.of(SmsConstants.CODE_LENGTH, "8"), cache.get(config));
+		assertEquals(2, built.get());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	void keepsTheValuesOfDifferentConfigurationsApart() {
+		cache.get(config("first", Map.of(SmsConstants.CODE_LENGTH, "6")));
+		cache.get(config("second", Map.of(SmsConstants.CODE_LENGTH, "8")));
+		assertEquals(Map.of(SmsConstants.CODE_LENGTH, "6"), cache.get(config("first", Map.of(SmsConstants.CODE_LENGTH, "6"))));
+		assertEquals(Map.of(), cache.get(null));
+		assertEquals(3, built.get());
+	}
+
+	@Test
+	void evictsTheValuesOfConfigurationsNoLongerUsed() {
+		cache.get(config("deleted", Map.of(SmsConstants.CODE_LENGTH, "6")));
+		cache.get(config("used", Map.of(SmsConstants.CODE_LENGTH, "6")));
+		for (int minutes = 1; minutes <= 61; minutes++) {
+			now += TimeUnit.MINUTES.toMillis(1);
+			cache.get(config("used", Map.of(SmsConstants.CODE_LENGTH, "6")));
+		}
+		assertEquals(1, cache.size());
+		assertEquals(2, built.get());
+	}
+
+	@Test
+	void versionsDoNotCollideOnSwappedValues() {
+		Map<String, String> config = Map.of(SmsConstants.CODE_LENGTH, "6", SmsConstants.MAX_ATTEMPTS, "8");
+		Map<String, String> swapped = Map.of(SmsConstants.CODE_LENGTH, "8", SmsConstants.MAX_ATTEMPTS, "6");
+		assertNotEquals(ConfigCache.version(config), ConfigCache.version(swapped));
+		assertEquals(ConfigCache.version(config), ConfigCache.version(new HashMap<>(config)));
+	}
+
+	private static AuthenticatorConfigModel config(String id, Map<String, String> config) {
+		AuthenticatorConfigModel model = new AuthenticatorConfigModel();
+		model.setId(id);
+		model.setConfig(new HashMap<>(config));
+		return model;
+	}
+
+}
@@ -0,0 +1,178 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+	private static final long OPEN_MILLIS = 300;
+	private static final RuntimeException TRANSIENT = new SmsGatewayException("unavailable", 503);
+	private static final RuntimeException PERMANENT = new SmsGatewayException("invalid number", 400);
+
+	private long now = TimeUnit.DAYS.toNanos(1);
+
+	@Test
+	void staysClosedBelowTheMinimumCalls() {
+		CircuitBreaker breaker = breaker(50, 0);
+		for (int i = 0; i < 3; i++) {
+			call(breaker, TRANSIENT);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void opensAtTheFailureRate() {
+		CircuitBreaker breaker = breaker(50, 0, 60_000);
+		call(breaker, null);
+		call(breaker, TRANSIENT);
+		call(breaker, null);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		call(breaker, new UncheckedIOException(new ConnectException("refused")));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertFalse(breaker.isCallPermitted());
+		assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+	}
+
+	@Test
+	void ignoresPermanentFailures() {
+		CircuitBreaker breaker = breaker(50, 0);
+		for (int i = 0; i < 10; i++) {
+			call(breaker, PERMANENT);
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void opensAtTheSlowCallRate() {
+		CircuitBreaker breaker = breaker(0, 50);
+		for (int i = 0; i < 4; i++) {
+			breaker.onResult(breaker.tryAcquire(), TimeUnit.SECONDS.toNanos(2), null);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	@Test
+	void forgetsCallsThatLeftTheWindow() {
+		CircuitBreaker breaker = new CircuitBreaker("gateway", new CircuitBreakerSettings(50, 0, Long.MAX_VALUE, 4, 100, 10, OPEN_MILLIS, 2), () -> now);
+		for (int i = 0; i < 3; i++) {
+			call(breaker, TRANSIENT);
+		}
+		elapse(100);
+		call(breaker, TRANSIENT);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void letsTheTrialCallsThroughOnceTheOpenPeriodIsOver() {
+		CircuitBreaker breaker = open(breaker(50, 0));
+		elapse(OPEN_MILLIS - 1);
+		assertFalse(breaker.isCallPermitted());
+		assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+		elapse(1);
+		assertTrue(breaker.isCallPermitted());
+		long first = breaker.tryAcquire();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		long second = breaker.tryAcquire();
+		assertNotEquals(CircuitBreaker.REJECTED, first);
+		assertNotEquals(CircuitBreaker.REJECTED, second);
+		assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+		assertFalse(breaker.isCallPermitted());
+	}
+
+	@Test
+	void closesAfterSuccessfulTrialCalls() {
+		CircuitBreaker breaker = open(breaker(50, 0));
+		elapse(OPEN_MILLIS);
+		call(breaker, null);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		call(breaker, null);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+		// the window starts empty again
+		call(breaker, TRANSIENT);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void reopensOnAFailedTrialCall() {
+		CircuitBreaker breaker = open(breaker(50, 0));
+		elapse(OPEN_MILLIS);
+		call(breaker, TRANSIENT);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+	}
+
+	@Test
+	void doesNotCountCallsStartedWhileClosedAsTrialCalls() {
+		CircuitBreaker breaker = breaker(50, 0);
+		long slowSuccess = breaker.tryAcquire();
+		long slowFailure = breaker.tryAcquire();
+		open(breaker);
+		elapse(OPEN_MILLIS);
+		long trial = breaker.tryAcquire();
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		// results of calls started before the breaker opened arrive late
+		breaker.onResult(slowFailure, 0, TRANSIENT);
+		breaker.onResult(slowSuccess, 0, null);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		breaker.onResult(trial, 0, null);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		call(breaker, null);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	@Test
+	void doesNotCountTrialCallsOfAnEarlierRound() {
+		CircuitBreaker breaker = open(breaker(50, 0));
+		elapse(OPEN_MILLIS);
+		long late = breaker.tryAcquire();
+		call(breaker, TRANSIENT);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		elapse(OPEN_MILLIS);
+		call(breaker, null);
+
+		breaker.onResult(late, 0, null);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+	private CircuitBreaker breaker(int failureRate, int slowCallRate) {
+		return breaker(failureRate, slowCallRate, OPEN_MILLIS);
+	}
+
+	private CircuitBreaker breaker(int failureRate, int slowCallRate, long openMillis) {
+		return new CircuitBreaker("gateway", new CircuitBreakerSettings(failureRate, slowCallRate, TimeUnit.SECONDS.toNanos(1),
+			4, 60_000, 10, openMillis, 2), () -> now);
+	}
+
+	/**
+	 * Moves the breaker's clock forward.
+	 */
+	private void elapse(long millis) {
+		now += TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	private static CircuitBreaker open(CircuitBreaker breaker) {
+		for (int i = 0; i < 4; i++) {
+			call(breaker, TRANSIENT);
+		}
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		return breaker;
+	}
+
+	private static void call(CircuitBreaker breaker, RuntimeException error) {
+		long permit = breaker.tryAcquire();
+		assertNotEquals(CircuitBreaker.REJECTED, permit);
+		breaker.onResult(permit, 0, error);
+	}
+
+}
@@ -0,0 +1,33 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CountryPrefixTest {
+
+	@Test
+	void extractsOneTwoAndThreeDigitCodes() {
+		assertEquals("1", CountryPrefix.of("+12025550123"));
+		assertEquals("7", CountryPrefix.of("+74951234567"));
+		assertEquals("49", CountryPrefix.of("+4915112345678"));
+		assertEquals("49", CountryPrefix.of("004915112345678"));
+		assertEquals("254", CountryPrefix.of("+254712345678"));
+	}
+
+	@Test
+	void rejectsNumbersWithoutAnInternationalPrefix() {
+		assertEquals(CountryPrefix.UNKNOWN, CountryPrefix.of(null));
+		assertEquals(CountryPrefix.UNKNOWN, CountryPrefix.of("015112345678"));
+		assertEquals(CountryPrefix.UNKNOWN, CountryPrefix.of("+49"));
+		assertEquals(CountryPrefix.UNKNOWN, CountryPrefix.of("+4a151"));
+	}
+
+	@Test
+	void rejectsNonAsciiDigits() {
+		// Arabic-Indic and fullwidth digits are digits to Character.isDigit()
+		assertEquals(CountryPrefix.UNKNOWN, CountryPrefix.of("+\u0664\u0669\u0661\u0665\u0661"));
+		assertEquals(CountryPrefix.UNKNOWN, CountryPrefix.of("+4\uFF19151"));
+	}
+
+}
@@ -0,0 +1,108 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.SmsConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpSmsServiceTest {
+
+	private HttpStubServer gateway;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		gateway = new HttpStubServer();
+	}
+
+	@AfterEach
+	void tearDown() {
+		gateway.close();
+	}
+
+	@Test
+	void postsTheMessageAsJson() throws IOException {
+		HttpSmsService service = new HttpSmsService(Map.of(SmsConstants.HTTP_URL, gateway.url(),
+			SmsConstants.HTTP_AUTHORIZATION, "Bearer token", SmsConstants.SENDER_ID, "Keycloak"));
+		service.send("+4915112345678", "Your code is 123456");
+
+		HttpStubServer.Request request = gateway.requests.get(0);
+		assertEquals("POST", request.method());
+		assertEquals("application/json", request.contentType());
+		assertEquals("Bearer token", request.authorization());
+		Map<?, ?> body = JsonSerialization.readValue(request.body(), Map.class);
+		assertEquals(Map.of("to", "+4915112345678", "from", "Keycloak", "text", "Your code is 123456"), body);
+	}
+
+	@Test
+	void sendsNoAuthorizationHeaderWithoutOne() {
+		new HttpSmsService(Map.of(SmsConstants.HTTP_URL, gateway.url())).send("+4915112345678", "text");
+		assertNull(gateway.requests.get(0).authorization());
+	}
+
+	@Test
+	void acceptsAny2xxStatus() {
+		gateway.status(202);
+		new HttpSmsService(Map.of(SmsConstants.HTTP_URL, gateway.url())).send("+4915112345678", "text");
+		assertEquals(1, gateway.requests.size());
+	}
+
+	@Test
+	void throttlingIsTransient() {
+		SmsGatewayException e = sendFailing(429);
+		assertTrue(e.isTransient());
+		assertTrue(RetryPolicy.isRetryable(e));
+	}
+
+	@Test
+	void serverErrorsAreTransient() {
+		for (int status : new int[] {500, 502, 503}) {
+			SmsGatewayException e = sendFailing(status);
+			assertEquals(status, e.getStatusCode());
+			assertTrue(RetryPolicy.isRetryable(e));
+		}
+	}
+
+	@Test
+	void clientErrorsAreNotTransient() {
+		for (int status : new int[] {400, 401, 404}) {
+			SmsGatewayException e = sendFailing(status);
+			assertFalse(e.isTransient());
+			assertFalse(RetryPolicy.isRetryable(e));
+		}
+	}
+
+	@Test
+	void unreachableGatewayIsTransient() throws IOException {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		HttpSmsService service = new HttpSmsService(Map.of(SmsConstants.HTTP_URL, "http://localhost:" + port + "/sms"));
+		UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> service.send("+4915112345678", "text"));
+		assertTrue(RetryPolicy.isRetryable(e));
+	}
+
+	@Test
+	void requiresTheUrl() {
+		assertThrows(IllegalArgumentException.class, () -> new HttpSmsService(Map.of()));
+	}
+
+	private SmsGatewayException sendFailing(int status) {
+		gateway.status(status);
+		HttpSmsService service = new HttpSmsService(Map.of(SmsConstants.HTTP_URL, gateway.url()));
+		return assertThrows(SmsGatewayException.class, () -> service.send("+4915112345678", "text"));
+	}
+
+}
@@ -0,0 +1,70 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process HTTP gateway answering every request with a configurable status after a configurable delay,
+ * recording the requests it received.
+ */
+class HttpStubServer implements Closeable {
+
+	private final HttpServer server;
+	private volatile int status = 200;
+	private volatile long delayMillis;
+
+	final List<Request> requests = new CopyOnWriteArrayList<>();
+
+	HttpStubServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	String url() {
+		return "http://localhost:" + server.getAddress().getPort() + "/sms";
+	}
+
+	HttpStubServer status(int status) {
+		this.status = status;
+		return this;
+	}
+
+	HttpStubServer delay(long delayMillis) {
+		this.delayMillis = delayMillis;
+		return this;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			requests.add(new Request(exchange.getRequestMethod(), exchange.getRequestHeaders().getFirst("Content-Type"),
+				exchange.getRequestHeaders().getFirst("Authorization"), body));
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			exchange.sendResponseHeaders(status, -1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	record Request(String method, String contentType, String authorization, String body) {
+	}
+
+}
@@ -0,0 +1,77 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.exception.ApiCallAttemptTimeoutException;
+import software.amazon.awssdk.core.exception.ApiCallTimeoutException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.sns.model.SnsException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryPolicyTest {
+
+	@Test
+	void retriesThrottlingAndServerErrorsOnly() {
+		assertTrue(RetryPolicy.isRetryable(new SmsGatewayException("throttled", 429)));
+		assertTrue(RetryPolicy.isRetryable(new SmsGatewayException("unavailable", 503)));
+		assertFalse(RetryPolicy.isRetryable(new SmsGatewayException("invalid number", 400)));
+		assertTrue(RetryPolicy.isRetryable(SnsException.builder().statusCode(500).build()));
+		assertTrue(RetryPolicy.isRetryable(SnsException.builder().statusCode(429).build()));
+		assertFalse(RetryPolicy.isRetryable(SnsException.builder().statusCode(403).build()));
+	}
+
+	@Test
+	void retriesNetworkErrorsButNotClientErrors() {
+		assertTrue(RetryPolicy.isRetryable(new IOException("reset")));
+		assertTrue(RetryPolicy.isRetryable(new UncheckedIOException(new ConnectException("refused"))));
+		assertTrue(RetryPolicy.isRetryable(SdkClientException.builder().cause(new ConnectException("refused")).build()));
+		assertFalse(RetryPolicy.isRetryable(SdkClientException.builder().message("no credentials").build()));
+		assertTrue(RetryPolicy.isRetryable(ApiCallAttemptTimeoutException.builder().message("attempt").build()));
+		assertFalse(RetryPolicy.isRetryable(ApiCallTimeoutException.builder().message("call").build()));
+		assertFalse(RetryPolicy.isRetryable(new IllegalStateException("bug")));
+	}
+
+	@Test
+	void unwrapsAsynchronousFailures() {
+		SmsGatewayException transientError = new SmsGatewayException("unavailable", 503);
+		assertTrue(RetryPolicy.isRetryable(new CompletionException(new ExecutionException(transientError))));
+		assertEquals(transientError, RetryPolicy.unwrap(new CompletionException(transientError)));
+	}
+
+	@Test
+	void jittersTheDelayBelowTheExponentialCeiling() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1_000, 30_000, 1_000);
+		for (int i = 0; i < 1_000; i++) {
+			assertTrue(policy.delayMillis(1) <= 100);
+			assertTrue(policy.delayMillis(3) <= 400);
+			// capped by the maximum delay
+			assertTrue(policy.delayMillis(30) <= 1_000);
+		}
+	}
+
+	@Test
+	void limitsTheDeadlinesByTheCodesLifetime() {
+		RetryPolicy policy = new RetryPolicy(3, 100, 1_000, 30_000, 1_000);
+		assertEquals(30_000, policy.deadlineMillis(300));
+		assertEquals(10_000, policy.deadlineMillis(20));
+		assertEquals(1_000, policy.syncDeadlineMillis(300));
+		assertEquals(500, policy.syncDeadlineMillis(1));
+		assertEquals(0, new RetryPolicy(3, 100, 1_000, 30_000, 0).syncDeadlineMillis(300));
+	}
+
+	@Test
+	void isEnabledWithMoreThanOneAttempt() {
+		assertFalse(new RetryPolicy(1, 100, 1_000, 30_000, 1_000).isEnabled());
+		assertFalse(new RetryPolicy(0, 100, 1_000, 30_000, 1_000).isEnabled());
+		assertTrue(new RetryPolicy(2, 100, 1_000, 30_000, 1_000).isEnabled());
+	}
+
+}
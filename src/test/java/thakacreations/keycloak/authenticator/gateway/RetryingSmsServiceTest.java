@@ -0,0 +1,135 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RetryingSmsServiceTest {
+
+	private static final RuntimeException TRANSIENT = new SmsGatewayException("unavailable", 503);
+	private static final RuntimeException PERMANENT = new SmsGatewayException("invalid number", 400);
+
+	private ScheduledExecutorService scheduler;
+
+	@BeforeEach
+	void setUp() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "test-retry"));
+	}
+
+	@AfterEach
+	void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	void retriesATransientFailureOnTheRequestThread() {
+		FailingService gateway = new FailingService(2, TRANSIENT);
+		retrying(gateway, 5, 1_000).send("+4915112345678", "text");
+		assertEquals(3, gateway.attempts.get());
+	}
+
+	@Test
+	void givesUpAfterTheMaximumAttempts() {
+		FailingService gateway = new FailingService(10, TRANSIENT);
+		assertThrows(SmsGatewayException.class, () -> retrying(gateway, 3, 1_000).send("+4915112345678", "text"));
+		assertEquals(3, gateway.attempts.get());
+	}
+
+	@Test
+	void neverRetriesAPermanentFailure() {
+		FailingService gateway = new FailingService(10, PERMANENT);
+		assertThrows(SmsGatewayException.class, () -> retrying(gateway, 5, 1_000).send("+4915112345678", "text"));
+		assertEquals(1, gateway.attempts.get());
+	}
+
+	@Test
+	void sendsOnceWithoutASynchronousBudget() {
+		FailingService gateway = new FailingService(10, TRANSIENT);
+		assertThrows(SmsGatewayException.class, () -> retrying(gateway, 5, 0).send("+4915112345678", "text"));
+		assertEquals(1, gateway.attempts.get());
+	}
+
+	@Test
+	void givesUpWhenTheBackoffPassesTheDeadline() {
+		AtomicLong now = new AtomicLong();
+		RetryingSmsService service = new RetryingSmsService(new FailingService(0, null),
+			new RetryPolicy(10, 100, 100, 0, 0), 1_000, 0, scheduler, now::get);
+		long deadline = TimeUnit.MILLISECONDS.toNanos(1_000);
+		assertTrue(service.nextDelay(1, deadline, TRANSIENT) >= 0);
+		// no backoff ends before the deadline any more
+		now.set(deadline);
+		assertEquals(-1, service.nextDelay(1, deadline, TRANSIENT));
+		now.set(0);
+		assertEquals(-1, service.nextDelay(10, deadline, TRANSIENT));
+		assertEquals(-1, service.nextDelay(1, deadline, PERMANENT));
+	}
+
+	@Test
+	void retriesAsynchronousSendsOnTheScheduler() throws Exception {
+		FailingService gateway = new FailingService(2, TRANSIENT);
+		retrying(gateway, 5, 0).sendAsync("+4915112345678", "text").toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertEquals(3, gateway.attempts.get());
+		assertEquals(List.of(Thread.currentThread().getName(), "test-retry", "test-retry"), gateway.threads);
+	}
+
+	@Test
+	void failsAnAsynchronousSendWithTheLastError() {
+		FailingService gateway = new FailingService(10, TRANSIENT);
+		CompletableFuture<Void> result = retrying(gateway, 3, 0).sendAsync("+4915112345678", "text").toCompletableFuture();
+		ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+		assertInstanceOf(SmsGatewayException.class, e.getCause());
+		assertEquals(3, gateway.attempts.get());
+	}
+
+	@Test
+	void retriesNoAsynchronousSendWithoutAScheduler() {
+		FailingService gateway = new FailingService(10, TRANSIENT);
+		RetryingSmsService service = new RetryingSmsService(gateway, new RetryPolicy(5, 1, 1, 0, 0), 10_000, 0, null);
+		assertTrue(service.sendAsync("+4915112345678", "text").toCompletableFuture().isCompletedExceptionally());
+		assertEquals(1, gateway.attempts.get());
+	}
+
+	private RetryingSmsService retrying(SmsService gateway, int maxAttempts, long syncDeadlineMillis) {
+		return new RetryingSmsService(gateway, new RetryPolicy(maxAttempts, 1, 5, 0, 0), 10_000, syncDeadlineMillis, scheduler);
+	}
+
+	/**
+	 * Fails the given number of attempts, then succeeds.
+	 */
+	private static class FailingService implements SmsService {
+		final AtomicInteger attempts = new AtomicInteger();
+		final List<String> threads = new CopyOnWriteArrayList<>();
+		private final int failures;
+		private final RuntimeException error;
+
+		FailingService(int failures, RuntimeException error) {
+			this.failures = failures;
+			this.error = error;
+		}
+
+		@Override
+		public void send(String phoneNumber, String message) {
+			threads.add(Thread.currentThread().getName());
+			if (attempts.incrementAndGet() <= failures) {
+				throw error;
+			}
+		}
+
+	}
+
+}
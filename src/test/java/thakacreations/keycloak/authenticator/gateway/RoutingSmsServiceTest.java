@@ -0,0 +1,163 @@
+package thakacreations.keycloak.authenticator.gateway;
+
+import thakacreations.keycloak.authenticator.SmsConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Routing between two HTTP gateways. A small share of the sends deliberately explores the worse gateway,
+ * the assertions leave room for it.
+ */
+class RoutingSmsServiceTest {
+
+	private static final String GERMANY = "+4915112345678";
+	private static final String US = "+12025550123";
+
+	private HttpStubServer first;
+	private HttpStubServer second;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		first = new HttpStubServer();
+		second = new HttpStubServer();
+	}
+
+	@AfterEach
+	void tearDown() {
+		first.close();
+		second.close();
+	}
+
+	@Test
+	void failsOverOnTransientErrors() {
+		first.status(503);
+		for (int i = 0; i < 10; i++) {
+			routing(http(first), http(second)).send(GERMANY, "text");
+		}
+		assertEquals(10, second.requests.size());
+		// without stats both gateways score alike and the first is tried first, unless explored
+		assertTrue(first.requests.size() >= 5);
+	}
+
+	@Test
+	void failsOverOnThrottling() {
+		first.status(429);
+		RoutingSmsService routing = routing(http(first), http(second));
+		for (int i = 0; i < 10; i++) {
+			routing.send(GERMANY, "text");
+		}
+		assertEquals(10, second.requests.size());
+	}
+
+	@Test
+	void doesNotFailOverOnClientErrors() {
+		first.status(400);
+		int rejected = 0;
+		for (int i = 0; i < 10; i++) {
+			int secondBefore = second.requests.size();
+			int firstBefore = first.requests.size();
+			try {
+				routing(http(first), http(second)).send(GERMANY, "text");
+				assertEquals(firstBefore, first.requests.size());
+			} catch (SmsGatewayException e) {
+				assertEquals(400, e.getStatusCode());
+				assertEquals(secondBefore, second.requests.size());
+				rejected++;
+			}
+		}
+		assertTrue(rejected >= 5);
+	}
+
+	@Test
+	void reportsEveryFailureWhenAllGatewaysFail() {
+		first.status(503);
+		second.status(502);
+		SmsGatewayException e = assertThrows(SmsGatewayException.class, () -> routing(http(first), http(second)).send(GERMANY, "text"));
+		assertEquals(1, e.getSuppressed().length);
+		assertEquals(1, first.requests.size());
+		assertEquals(1, second.requests.size());
+	}
+
+	@Test
+	void prefersTheFasterGateway() {
+		first.delay(30);
+		RoutingSmsService routing = routing(http(first), http(second));
+		for (int i = 0; i < 40; i++) {
+			routing.send(GERMANY, "text");
+		}
+		assertTrue(second.requests.size() >= 30, "second gateway got " + second.requests.size() + " of 40");
+	}
+
+	@Test
+	void avoidsTheFailingGateway() {
+		first.status(503);
+		RoutingSmsService routing = routing(http(first), http(second));
+		for (int i = 0; i < 40; i++) {
+			routing.send(GERMANY, "text");
+		}
+		assertEquals(40, second.requests.size());
+		assertTrue(first.requests.size() <= 10, "failing gateway tried " + first.requests.size() + " times");
+	}
+
+	@Test
+	void keepsTheAveragesPerCountryCode() {
+		first.delay(30);
+		RoutingSmsService routing = routing(http(first), http(second));
+		for (int i = 0; i < 5; i++) {
+			routing.send(GERMANY, "text");
+		}
+		for (RoutingSmsService.GatewayStats stats : routing.stats(CountryPrefix.of(US))) {
+			assertEquals(0, stats.score());
+		}
+		assertTrue(routing.stats(CountryPrefix.of(GERMANY))[0].score() > routing.stats(CountryPrefix.of(GERMANY))[1].score());
+	}
+
+	@Test
+	void skipsUnavailableGateways() {
+		RoutingSmsService routing = routing(unavailable(http(first)), http(second));
+		for (int i = 0; i < 10; i++) {
+			routing.send(GERMANY, "text");
+		}
+		assertEquals(0, first.requests.size());
+		assertEquals(10, second.requests.size());
+	}
+
+	@Test
+	void failsWithoutAnyAvailableGateway() {
+		RoutingSmsService routing = routing(unavailable(http(first)), unavailable(http(second)));
+		assertThrows(SmsGatewayUnavailableException.class, () -> routing.send(GERMANY, "text"));
+	}
+
+	private static RoutingSmsService routing(SmsService firstGateway, SmsService secondGateway) {
+		return new RoutingSmsService(List.of(new RoutingSmsService.Route("first", firstGateway),
+			new RoutingSmsService.Route("second", secondGateway)), null);
+	}
+
+	private static SmsService http(HttpStubServer server) {
+		return new HttpSmsService(Map.of(SmsConstants.HTTP_URL, server.url()));
+	}
+
+	private static SmsService unavailable(SmsService gateway) {
+		return new SmsService() {
+			@Override
+			public void send(String phoneNumber, String message) {
+				gateway.send(phoneNumber, message);
+			}
+
+			@Override
+			public boolean isAvailable() {
+				return false;
+			}
+		};
+	}
+
+}
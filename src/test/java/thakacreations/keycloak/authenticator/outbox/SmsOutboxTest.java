@@ -0,0 +1,246 @@
+package thakacreations.keycloak.authenticator.outbox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class SmsOutboxTest {
+
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void recoversUnacknowledgedEntriesAfterACrash() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		SmsOutbox outbox = new SmsOutbox(directory.resolve("live"), SEGMENT_SIZE);
+		long first = outbox.append("realm", "config", "user-1", 1_000, expiry);
+		long second = outbox.append("realm", null, "user-2", 2_000, expiry);
+		long third = outbox.append("realm", "config", "user-3", 3_000, expiry);
+		outbox.ack(second);
+		Path crashed = crashImage(outbox, directory.resolve("live"));
+
+		SmsOutbox recovered = new SmsOutbox(crashed, SEGMENT_SIZE);
+		assertEquals(List.of(new OutboxEntry(first, "realm", "config", "user-1", 1_000, expiry),
+			new OutboxEntry(third, "realm", "config", "user-3", 3_000, expiry)), recovered.getRecovered());
+		assertEquals(2, recovered.size());
+		assertTrue(recovered.append("realm", "config", "user-4", 4_000, expiry) > third);
+		recovered.close();
+	}
+
+	@Test
+	void acknowledgedRecoveredEntriesAreNotRecoveredAgain() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		SmsOutbox outbox = new SmsOutbox(directory.resolve("live"), SEGMENT_SIZE);
+		outbox.append("realm", "config", "user-1", 1_000, expiry);
+		Path crashed = crashImage(outbox, directory.resolve("live"));
+
+		SmsOutbox recovered = new SmsOutbox(crashed, SEGMENT_SIZE);
+		recovered.getRecovered().forEach(entry -> recovered.ack(entry.id()));
+		recovered.close();
+
+		SmsOutbox reopened = new SmsOutbox(crashed, SEGMENT_SIZE);
+		assertEquals(List.of(), reopened.getRecovered());
+		reopened.close();
+	}
+
+	@Test
+	void skipsExpiredEntries() throws Exception {
+		long now = System.currentTimeMillis();
+		SmsOutbox outbox = new SmsOutbox(directory.resolve("live"), SEGMENT_SIZE);
+		outbox.append("realm", "config", "user-1", now - 300_000, now - 1);
+		long valid = outbox.append("realm", "config", "user-2", now, now + 300_000);
+		Path crashed = crashImage(outbox, directory.resolve("live"));
+
+		SmsOutbox recovered = new SmsOutbox(crashed, SEGMENT_SIZE);
+		assertEquals(List.of(valid), ids(recovered.getRecovered()));
+		recovered.close();
+	}
+
+	@Test
+	void ignoresATornRecordAndTheRestOfItsSegment() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		SmsOutbox outbox = new SmsOutbox(directory.resolve("live"), SEGMENT_SIZE);
+		long first = outbox.append("realm", "config", "user-1", 1_000, expiry);
+		outbox.append("realm", "config", "user-2", 2_000, expiry);
+		outbox.append("realm", "config", "user-3", 3_000, expiry);
+		Path crashed = crashImage(outbox, directory.resolve("live"));
+
+		// flip a byte in the payload of the second record, its CRC32C no longer matches
+		Path segment = segments(crashed).get(0);
+		byte[] bytes = Files.readAllBytes(segment);
+		int second = 8 + ByteBuffer.wrap(bytes).getInt(0);
+		bytes[second + 8 + 20] ^= 0x40;
+		Files.write(segment, bytes);
+
+		SmsOutbox recovered = new SmsOutbox(crashed, SEGMENT_SIZE);
+		assertEquals(List.of(first), ids(recovered.getRecovered()));
+		recovered.close();
+	}
+
+	@Test
+	void ignoresARecordWithATornChecksum() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		SmsOutbox outbox = new SmsOutbox(directory.resolve("live"), SEGMENT_SIZE);
+		outbox.append("realm", "config", "user-1", 1_000, expiry);
+		Path crashed = crashImage(outbox, directory.resolve("live"));
+
+		Path segment = segments(crashed).get(0);
+		byte[] bytes = Files.readAllBytes(segment);
+		bytes[4] ^= 0x01;
+		Files.write(segment, bytes);
+
+		SmsOutbox recovered = new SmsOutbox(crashed, SEGMENT_SIZE);
+		assertEquals(List.of(), recovered.getRecovered());
+		recovered.close();
+	}
+
+	@Test
+	void deletesSegmentsOnceAllOfTheirEntriesAreAcknowledged() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		Path live = directory.resolve("live");
+		SmsOutbox outbox = new SmsOutbox(live, 256);
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			ids.add(outbox.append("realm", "config", "user-" + i, 1_000, expiry));
+		}
+		assertTrue(segments(live).size() > 3);
+		ids.forEach(outbox::ack);
+
+		// the flusher compacts once a second, all but the segment currently written to go
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (segments(live).size() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(1, segments(live).size());
+		outbox.close();
+		assertEquals(List.of(), segments(live));
+	}
+
+	@Test
+	void deletesTheSegmentsBehindAnUnacknowledgedEntry() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		Path live = directory.resolve("live");
+		SmsOutbox outbox = new SmsOutbox(live, 256);
+		long first = outbox.append("realm", "config", "user-0", 1_000, expiry);
+		for (int i = 1; i < 20; i++) {
+			outbox.ack(outbox.append("realm", "config", "user-" + i, 1_000, expiry));
+		}
+		assertTrue(segments(live).size() > 3);
+		outbox.close();
+
+		// the first segment holds the entry still to be sent, the acknowledged segments after it go
+		assertEquals(List.of("outbox-0000000000000001.log"), segments(live).stream().map(path -> path.getFileName().toString()).toList());
+		SmsOutbox reopened = new SmsOutbox(live, 256);
+		assertEquals(List.of(first), ids(reopened.getRecovered()));
+		reopened.close();
+	}
+
+	@Test
+	void keepsTheSegmentsAcknowledgingTheEntriesOfAKeptSegment() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		Path live = directory.resolve("live");
+		SmsOutbox outbox = new SmsOutbox(live, 256);
+		List<Long> ids = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			ids.add(outbox.append("realm", "config", "user-" + i, 1_000, expiry));
+		}
+		// the acks of the other entries of the first segment are written to later segments
+		ids.subList(1, ids.size()).forEach(outbox::ack);
+		outbox.close();
+
+		SmsOutbox reopened = new SmsOutbox(live, 256);
+		assertEquals(List.of(ids.get(0)), ids(reopened.getRecovered()));
+		reopened.ack(ids.get(0));
+		reopened.close();
+		assertEquals(List.of(), segments(live));
+	}
+
+	@Test
+	void rejectsAppendsOnceClosed() {
+		SmsOutbox outbox = new SmsOutbox(directory.resolve("live"), SEGMENT_SIZE);
+		outbox.close();
+		assertThrows(IllegalStateException.class, () -> outbox.append("realm", "config", "user-1", 1_000, System.currentTimeMillis() + 300_000));
+		// acks and a second close are ignored
+		outbox.ack(1);
+		outbox.close();
+	}
+
+	@Test
+	void recoversConcurrentAppendsAcrossSegments() throws Exception {
+		long expiry = System.currentTimeMillis() + 300_000;
+		Path live = directory.resolve("live");
+		SmsOutbox outbox = new SmsOutbox(live, 1024);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int thread = t;
+			futures.add(executor.submit(() -> {
+				for (int i = 0; i < 200; i++) {
+					outbox.append("realm", "config", "user-" + thread + "-" + i, 1_000, expiry);
+				}
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		Path crashed = crashImage(outbox, live);
+
+		SmsOutbox recovered = new SmsOutbox(crashed, 1024);
+		assertEquals(800, recovered.getRecovered().size());
+		recovered.close();
+	}
+
+	@Test
+	void createsTheLogReadableByTheOwnerOnly() throws Exception {
+		assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+		Path live = directory.resolve("live");
+		SmsOutbox outbox = new SmsOutbox(live, SEGMENT_SIZE);
+		assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(live)));
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(segments(live).get(0))));
+		outbox.close();
+	}
+
+	/**
+	 * Copies the log as a node dying right now would leave it, the outbox itself is closed without compaction.
+	 */
+	private Path crashImage(SmsOutbox outbox, Path live) throws IOException {
+		Path crashed = directory.resolve("crashed");
+		Files.createDirectories(crashed);
+		for (Path segment : segments(live)) {
+			Files.copy(segment, crashed.resolve(segment.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+		}
+		outbox.close();
+		return crashed;
+	}
+
+	private static List<Path> segments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().toList();
+		}
+	}
+
+	private static List<Long> ids(List<OutboxEntry> entries) {
+		return entries.stream().map(OutboxEntry::id).toList();
+	}
+
+}
@@ -0,0 +1,126 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CompactOtpStoreTest {
+
+	private static final long TTL = 300_000;
+
+	private CompactOtpStore store;
+	private long now;
+
+	@BeforeEach
+	void setUp() {
+		store = new CompactOtpStore();
+		// the tables keep whole seconds
+		now = System.currentTimeMillis() / 1000 * 1000;
+	}
+
+	@Test
+	void putGetAndRemove() {
+		store.put("realm", "alice", new OtpEntry("012345", now, now + TTL));
+		OtpEntry entry = store.get("realm", "alice");
+		assertEquals("012345", entry.getCode());
+		assertEquals(now, entry.getIssuedTime());
+		assertEquals(now + TTL, entry.getExpiryTime());
+		assertNull(store.get("other", "alice"));
+		store.remove("realm", "alice");
+		assertNull(store.get("realm", "alice"));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void overwriteReplacesTheCode() {
+		store.put("realm", "alice", new OtpEntry("111111", now, now + TTL));
+		store.verifyAndConsume("realm", "alice", "000000", now, 3);
+		store.put("realm", "alice", new OtpEntry("222222", now, now + TTL));
+		assertEquals(1, store.size());
+		assertEquals(0, store.get("realm", "alice").getAttempts());
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "111111", now, 3));
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "222222", now, 3));
+	}
+
+	@Test
+	void overwriteWithALaterExpiryOutlivesTheFirstDeadline() {
+		store.put("realm", "alice", new OtpEntry("111111", now, now + 2_000));
+		store.put("realm", "alice", new OtpEntry("222222", now, now + TTL));
+		assertEquals(0, store.expireEntries(now + 5_000));
+		assertEquals("222222", store.get("realm", "alice").getCode());
+		assertEquals(1, store.expireEntries(now + TTL + 2_000));
+		assertNull(store.get("realm", "alice"));
+	}
+
+	@Test
+	void overwriteWithAnEarlierExpiryExpiresAtTheNewDeadline() {
+		store.put("realm", "alice", new OtpEntry("111111", now, now + TTL));
+		store.put("realm", "alice", new OtpEntry("222222", now, now + 2_000));
+		assertEquals(1, store.expireEntries(now + 5_000));
+		assertNull(store.get("realm", "alice"));
+	}
+
+	@Test
+	void consumesAValidCodeOnce() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+		assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void countsFailedAttemptsUntilLocked() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(1, store.get("realm", "alice").getAttempts());
+		assertEquals(OtpVerification.LOCKED, store.verifyAndConsume("realm", "alice", "abc", now, 2));
+		assertEquals(OtpVerification.LOCKED, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+	}
+
+	@Test
+	void reportsAnExpiredCode() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.EXPIRED, store.verifyAndConsume("realm", "alice", "123456", now + TTL + 1_000, 3));
+	}
+
+	@Test
+	void expiresOnlyTheDueEntries() {
+		for (int i = 0; i < 10_000; i++) {
+			store.put("realm", "user-" + i, new OtpEntry("123456", now, now + (i % 2 == 0 ? 2_000 : TTL)));
+		}
+		assertEquals(10_000, store.size());
+		assertEquals(0, store.expireEntries(now));
+		assertEquals(5_000, store.expireEntries(now + 5_000));
+		assertNull(store.get("realm", "user-0"));
+		assertNotNull(store.get("realm", "user-1"));
+		assertEquals(5_000, store.expireEntries(now + TTL + 2_000));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void keepsDeadlinesBeyondARevolutionOfTheWheel() {
+		// 600 seconds, more than the 512 buckets of the wheel
+		store.put("realm", "alice", new OtpEntry("123456", now, now + 600_000));
+		assertEquals(0, store.expireEntries(now + 200_000));
+		assertEquals(0, store.expireEntries(now + 400_000));
+		assertEquals(0, store.expireEntries(now + 590_000));
+		assertNotNull(store.get("realm", "alice"));
+		assertEquals(1, store.expireEntries(now + 602_000));
+	}
+
+	@Test
+	void keepsCodesThatDoNotFitNextToTheTables() {
+		store.put("realm", "alice", new OtpEntry("1234567890", now, now + TTL));
+		assertEquals("1234567890", store.get("realm", "alice").getCode());
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(1, store.size());
+		store.put("realm", "alice", new OtpEntry("12ab56", now, now + TTL));
+		assertEquals(1, store.size());
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "12ab56", now, 3));
+		assertEquals(0, store.size());
+	}
+
+}
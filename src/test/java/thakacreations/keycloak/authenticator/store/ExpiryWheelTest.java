@@ -0,0 +1,122 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExpiryWheelTest {
+
+	private long now;
+
+	@BeforeEach
+	void setUp() {
+		now = System.currentTimeMillis();
+	}
+
+	@Test
+	void expiresKeysOnceTheirDeadlineHasPassed() {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1_000, 16);
+		wheel.schedule("alice", now + 1_000);
+		wheel.schedule("bob", now + 5_000);
+		assertEquals(List.of(), advance(wheel, now));
+		assertEquals(List.of("alice"), advance(wheel, now + 2_000));
+		assertEquals(List.of("bob"), advance(wheel, now + 6_000));
+		assertEquals(List.of(), advance(wheel, now + 60_000));
+	}
+
+	@Test
+	void schedulesPassedDeadlinesIntoTheNextTick() {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1_000, 16);
+		wheel.schedule("alice", now - 10_000);
+		assertEquals(List.of("alice"), advance(wheel, now + 1_000));
+	}
+
+	@Test
+	void keepsDeadlinesBeyondARevolution() {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1_000, 16);
+		wheel.schedule("alice", now + 20_000);
+		assertEquals(List.of(), advance(wheel, now + 5_000));
+		assertEquals(List.of(), advance(wheel, now + 19_000));
+		assertEquals(List.of("alice"), advance(wheel, now + 21_000));
+	}
+
+	@Test
+	void visitsTheSoonestDeadlinesFirstAndDropsThem() {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1_000, 16);
+		wheel.schedule("carol", now + 3_000);
+		wheel.schedule("alice", now + 1_000);
+		wheel.schedule("bob", now + 2_000);
+		List<String> visited = new ArrayList<>();
+		wheel.visitEarliest((key, expiryTime) -> visited.add(key));
+		assertEquals(List.of("alice", "bob", "carol"), visited);
+		assertEquals(List.of(), advance(wheel, now + 5_000));
+	}
+
+	@Test
+	void keepsTheDeadlineTheVisitorStopsAt() {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1_000, 16);
+		wheel.schedule("alice", now + 1_000);
+		wheel.schedule("bob", now + 2_000);
+		List<String> visited = new ArrayList<>();
+		wheel.visitEarliest((key, expiryTime) -> {
+			visited.add(key);
+			return false;
+		});
+		assertEquals(List.of("alice"), visited);
+		assertEquals(List.of("alice", "bob"), advance(wheel, now + 3_000));
+	}
+
+	@Test
+	void visitsOnlyTheDeadlinesDueWithinARevolution() {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1_000, 16);
+		// in the bucket of alice's tick, one revolution later
+		wheel.schedule("bob", now + 17_000);
+		wheel.schedule("alice", now + 1_000);
+		List<String> visited = new ArrayList<>();
+		wheel.visitEarliest((key, expiryTime) -> visited.add(key));
+		assertEquals(List.of("alice"), visited);
+		assertEquals(List.of("bob"), advance(wheel, now + 18_000));
+	}
+
+	@Test
+	void expiresKeysScheduledWhileAdvancing() throws Exception {
+		ExpiryWheel<String> wheel = new ExpiryWheel<>(1, 64);
+		Set<String> expired = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<?>> writers = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			int thread = t;
+			writers.add(executor.submit(() -> {
+				for (int i = 0; i < 10_000; i++) {
+					wheel.schedule(thread + "-" + i, System.currentTimeMillis() + i % 50);
+				}
+			}));
+		}
+		while (!writers.stream().allMatch(Future::isDone)) {
+			wheel.advance(System.currentTimeMillis(), (key, expiryTime) -> assertTrue(expired.add(key), key));
+		}
+		executor.shutdown();
+		wheel.advance(System.currentTimeMillis() + 1_000, (key, expiryTime) -> assertTrue(expired.add(key), key));
+		assertEquals(40_000, expired.size());
+	}
+
+	/**
+	 * Advances the wheel, returning every expired key.
+	 */
+	private static List<String> advance(ExpiryWheel<String> wheel, long now) {
+		List<String> expired = new ArrayList<>();
+		wheel.advance(now, (key, expiryTime) -> expired.add(key));
+		return expired;
+	}
+
+}
@@ -0,0 +1,46 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrequencySketchTest {
+
+	@Test
+	void countsTheUsesOfAKey() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		assertEquals(0, sketch.frequency("realm:alice"));
+		for (int i = 0; i < 5; i++) {
+			sketch.increment("realm:alice");
+		}
+		assertEquals(5, sketch.frequency("realm:alice"));
+		sketch.increment("realm:bob");
+		assertEquals(1, sketch.frequency("realm:bob"));
+	}
+
+	@Test
+	void capsTheCountAt15() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment("realm:alice");
+		}
+		assertEquals(15, sketch.frequency("realm:alice"));
+	}
+
+	@Test
+	void halvesTheCountsAfterTheSampleSize() {
+		FrequencySketch sketch = new FrequencySketch(1024);
+		for (int i = 0; i < 10; i++) {
+			sketch.increment("realm:alice");
+		}
+		// ten increments per counter of a row trigger the reset
+		for (int i = 0; i < 10 * 1024; i++) {
+			sketch.increment("realm:user-" + i);
+		}
+		int frequency = sketch.frequency("realm:alice");
+		// the other keys may have added to the counters of the key before they were halved
+		assertTrue(frequency >= 5 && frequency <= 7, "frequency " + frequency);
+	}
+
+}
@@ -0,0 +1,131 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryOtpStoreTest {
+
+	private static final long TTL = 300_000;
+
+	private long now;
+
+	@BeforeEach
+	void setUp() {
+		now = System.currentTimeMillis();
+	}
+
+	@Test
+	void verifiesAndConsumes() {
+		InMemoryOtpStore store = new InMemoryOtpStore();
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+		assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void expiresOnlyTheDueEntries() {
+		InMemoryOtpStore store = new InMemoryOtpStore();
+		store.put("realm", "alice", new OtpEntry("123456", now, now + 1_000));
+		store.put("realm", "bob", new OtpEntry("123456", now, now + TTL));
+		assertEquals(0, store.expireEntries(now));
+		assertEquals(1, store.expireEntries(now + 3_000));
+		assertNull(store.get("realm", "alice"));
+		assertNotNull(store.get("realm", "bob"));
+	}
+
+	@Test
+	void admitsANewKeyOnATieEvictingTheCodeExpiringSoonest() {
+		InMemoryOtpStore store = full(3);
+		assertTrue(store.put("realm", "newcomer", new OtpEntry("999999", now, now + TTL)));
+		assertNull(store.get("realm", "user-1"));
+		assertNotNull(store.get("realm", "user-2"));
+		assertNotNull(store.get("realm", "newcomer"));
+		assertEquals(3, store.size());
+		assertEquals(1, store.evictions());
+		assertEquals(0, store.rejections());
+	}
+
+	@Test
+	void rejectsANewKeyUsedLessOftenThanTheVictim() {
+		InMemoryOtpStore store = full(3);
+		// the user in the middle of a login looks the code up or enters it
+		store.get("realm", "user-1");
+		assertFalse(store.put("realm", "newcomer", new OtpEntry("999999", now, now + TTL)));
+		assertNull(store.get("realm", "newcomer"));
+		assertNotNull(store.get("realm", "user-1"));
+		assertEquals(3, store.size());
+		assertEquals(0, store.evictions());
+		assertEquals(1, store.rejections());
+	}
+
+	@Test
+	void dropsExpiredCodesBeforeEvictingLiveOnes() {
+		InMemoryOtpStore store = new InMemoryOtpStore(3, 0);
+		store.put("realm", "expired-1", new OtpEntry("123456", now - TTL, now - 2_000));
+		store.put("realm", "expired-2", new OtpEntry("123456", now - TTL, now - 1_000));
+		store.put("realm", "user-1", new OtpEntry("123456", now, now + 60_000));
+		store.get("realm", "user-1");
+		assertTrue(store.put("realm", "newcomer", new OtpEntry("999999", now, now + TTL)));
+		// both expired codes go in the same eviction, the live one stays
+		assertNull(store.get("realm", "expired-1"));
+		assertNull(store.get("realm", "expired-2"));
+		assertNotNull(store.get("realm", "user-1"));
+		assertEquals(2, store.size());
+		assertEquals(0, store.evictions());
+	}
+
+	@Test
+	void skipsTheStaleDeadlineOfAReissuedCode() {
+		InMemoryOtpStore store = full(3);
+		// user-1 gets a new code expiring last, its first deadline is stale
+		store.put("realm", "user-1", new OtpEntry("111111", now, now + TTL));
+		assertTrue(store.put("realm", "newcomer", new OtpEntry("999999", now, now + TTL)));
+		assertNotNull(store.get("realm", "user-1"));
+		assertNull(store.get("realm", "user-2"));
+	}
+
+	@Test
+	void reissuingAStoredKeyNeverEvicts() {
+		InMemoryOtpStore store = full(3);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(store.put("realm", "user-2", new OtpEntry("222222", now, now + TTL)));
+		}
+		assertEquals(3, store.size());
+		assertEquals(0, store.evictions());
+	}
+
+	@Test
+	void boundsTheEstimatedBytes() {
+		long entryBytes = InMemoryOtpStore.ENTRY_OVERHEAD + "realm:user-1".length() + "123456".length();
+		InMemoryOtpStore store = new InMemoryOtpStore(0, 2 * entryBytes);
+		store.put("realm", "user-1", new OtpEntry("123456", now, now + 60_000));
+		store.put("realm", "user-2", new OtpEntry("123456", now, now + 120_000));
+		assertEquals(2 * entryBytes, store.bytes());
+		assertTrue(store.put("realm", "user-3", new OtpEntry("123456", now, now + TTL)));
+		assertNull(store.get("realm", "user-1"));
+		assertEquals(2 * entryBytes, store.bytes());
+		store.remove("realm", "user-2");
+		assertEquals(entryBytes, store.bytes());
+	}
+
+	/**
+	 * A store bounded to the given number of entries and filled with codes of user-1 to user-n, user-1
+	 * expiring first.
+	 */
+	private InMemoryOtpStore full(int maxEntries) {
+		InMemoryOtpStore store = new InMemoryOtpStore(maxEntries, 0);
+		for (int i = 1; i <= maxEntries; i++) {
+			assertTrue(store.put("realm", "user-" + i, new OtpEntry("123456", now, now + i * 60_000L)));
+		}
+		return store;
+	}
+
+}
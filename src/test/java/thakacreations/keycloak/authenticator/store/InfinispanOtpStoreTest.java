@@ -0,0 +1,41 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.infinispan.Cache;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InfinispanOtpStoreTest {
+
+	@Test
+	void givesUpAfterLosingEveryConditionalWrite() {
+		long now = System.currentTimeMillis();
+		String value = new OtpEntry("123456", now, now + 300_000).encode();
+		AtomicInteger reads = new AtomicInteger();
+		// another request changes the entry between every read and write
+		InfinispanOtpStore store = new InfinispanOtpStore(cache(value, reads));
+
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+		assertEquals(InfinispanOtpStore.MAX_WRITE_ATTEMPTS, reads.get());
+		reads.set(0);
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 3));
+		assertEquals(InfinispanOtpStore.MAX_WRITE_ATTEMPTS, reads.get());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Cache<String, String> cache(String value, AtomicInteger reads) {
+		return (Cache<String, String>) Proxy.newProxyInstance(InfinispanOtpStoreTest.class.getClassLoader(), new Class<?>[]{Cache.class},
+			(proxy, method, args) -> switch (method.getName()) {
+				case "get" -> {
+					reads.incrementAndGet();
+					yield value;
+				}
+				case "remove", "replace" -> false;
+				default -> throw new UnsupportedOperationException(method.getName());
+			});
+	}
+
+}
@@ -0,0 +1,88 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LongExpiryWheelTest {
+
+	@Test
+	void visitsKeysOnceTheirTickIsReached() {
+		LongExpiryWheel wheel = new LongExpiryWheel(16, 0);
+		wheel.schedule(1, 5);
+		wheel.schedule(2, 7);
+		assertEquals(List.of(), advance(wheel, 4));
+		assertEquals(List.of(1L), advance(wheel, 5));
+		assertEquals(List.of(2L), advance(wheel, 7));
+		assertEquals(List.of(), advance(wheel, 100));
+	}
+
+	@Test
+	void schedulesPassedTicksIntoTheNextOne() {
+		LongExpiryWheel wheel = new LongExpiryWheel(16, 0);
+		advance(wheel, 10);
+		wheel.schedule(3, 2);
+		assertEquals(List.of(3L), advance(wheel, 11));
+	}
+
+	@Test
+	void keepsKeysDueInALaterRound() {
+		LongExpiryWheel wheel = new LongExpiryWheel(16, 0);
+		// one revolution later, in the bucket of tick 4
+		wheel.schedule(4, 20);
+		List<Long> visited = new ArrayList<>();
+		wheel.advance(4, (key, bucket) -> {
+			visited.add(key);
+			return wheel.index(20) == bucket;
+		});
+		assertEquals(List.of(4L), visited);
+		assertEquals(List.of(), advance(wheel, 19));
+		assertEquals(List.of(4L), advance(wheel, 20));
+	}
+
+	@Test
+	void walksAtMostOneRevolutionAfterAPause() {
+		LongExpiryWheel wheel = new LongExpiryWheel(16, 0);
+		for (long key = 1; key <= 16; key++) {
+			wheel.schedule(key, key);
+		}
+		List<Long> visited = advance(wheel, 1_000);
+		visited.sort(null);
+		assertEquals(16, visited.size());
+		assertEquals(1L, visited.get(0));
+		assertEquals(16L, visited.get(15));
+	}
+
+	@Test
+	void growsAndEmptiesABucket() {
+		LongExpiryWheel wheel = new LongExpiryWheel(16, 0);
+		for (long key = 1; key <= 1_000; key++) {
+			wheel.schedule(key, 3);
+		}
+		assertEquals(1_000, advance(wheel, 3).size());
+		wheel.schedule(1, 19);
+		assertEquals(List.of(1L), advance(wheel, 19));
+	}
+
+	@Test
+	void requiresAPowerOfTwo() {
+		assertThrows(IllegalArgumentException.class, () -> new LongExpiryWheel(12, 0));
+	}
+
+	/**
+	 * Advances the wheel, dropping and returning every visited key.
+	 */
+	private static List<Long> advance(LongExpiryWheel wheel, long nowTick) {
+		List<Long> visited = new ArrayList<>();
+		wheel.advance(nowTick, (key, bucket) -> {
+			visited.add(key);
+			return false;
+		});
+		return visited;
+	}
+
+}
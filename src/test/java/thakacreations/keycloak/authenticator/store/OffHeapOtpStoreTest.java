@@ -0,0 +1,263 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OffHeapOtpStoreTest {
+
+	private static final long TTL = 300_000;
+
+	private long now;
+
+	@BeforeEach
+	void setUp() {
+		// the slots keep whole seconds
+		now = System.currentTimeMillis() / 1000 * 1000;
+	}
+
+	@Test
+	void putGetAndRemove() {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		assertTrue(store.put("realm", "alice", new OtpEntry("012345", now, now + TTL)));
+		OtpEntry entry = store.get("realm", "alice");
+		assertEquals("012345", entry.getCode());
+		assertEquals(now, entry.getIssuedTime());
+		assertEquals(now + TTL, entry.getExpiryTime());
+		assertEquals(1, store.size());
+		store.remove("realm", "alice");
+		assertNull(store.get("realm", "alice"));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void putReplacesTheCodeOfTheUser() {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		store.put("realm", "alice", new OtpEntry("111111", now, now + TTL));
+		store.put("realm", "alice", new OtpEntry("222222", now, now + TTL));
+		assertEquals("222222", store.get("realm", "alice").getCode());
+		assertEquals(1, store.size());
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "111111", now, 3));
+	}
+
+	@Test
+	void verifiesAndConsumes() {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(1, store.get("realm", "alice").getAttempts());
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+		assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void locksAfterMaxAttemptsAndReportsExpiry() {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(OtpVerification.LOCKED, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(OtpVerification.LOCKED, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+
+		store.put("realm", "bob", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.EXPIRED, store.verifyAndConsume("realm", "bob", "123456", now + TTL + 1000, 2));
+	}
+
+	@Test
+	void keepsCodesTheSlotsCannotHoldOnTheHeap() {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		store.put("realm", "alice", new OtpEntry("123456789", now, now + TTL));
+		assertEquals("123456789", store.get("realm", "alice").getCode());
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals("123456", store.get("realm", "alice").getCode());
+		assertEquals(1, store.size());
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+		assertNull(store.get("realm", "alice"));
+	}
+
+	@Test
+	void rejectsANewCodeWhenTheWindowHoldsOnlyLiveCodes() {
+		// as many slots as the probe window, every key competes for all of them
+		OffHeapOtpStore store = new OffHeapOtpStore(OffHeapOtpStore.WINDOW);
+		for (int i = 0; i < OffHeapOtpStore.WINDOW; i++) {
+			assertTrue(store.put("realm", "user-" + i, new OtpEntry(code(i), now, now + TTL)));
+		}
+		assertFalse(store.put("realm", "newcomer", new OtpEntry("999999", now, now + TTL)));
+		assertEquals(1, store.rejections());
+		assertNull(store.get("realm", "newcomer"));
+		for (int i = 0; i < OffHeapOtpStore.WINDOW; i++) {
+			assertEquals(code(i), store.get("realm", "user-" + i).getCode());
+		}
+		// a re-issued code of a stored user is still taken
+		assertTrue(store.put("realm", "user-0", new OtpEntry("999999", now, now + TTL)));
+	}
+
+	@Test
+	void reusesTheSlotOfAnExpiredCode() {
+		OffHeapOtpStore store = new OffHeapOtpStore(OffHeapOtpStore.WINDOW);
+		store.put("realm", "expired", new OtpEntry("111111", now - TTL, now - 2000));
+		for (int i = 1; i < OffHeapOtpStore.WINDOW; i++) {
+			store.put("realm", "user-" + i, new OtpEntry(code(i), now, now + TTL));
+		}
+		assertTrue(store.put("realm", "newcomer", new OtpEntry("999999", now, now + TTL)));
+		assertEquals(0, store.rejections());
+		assertNull(store.get("realm", "expired"));
+	}
+
+	@Test
+	void expireEntriesFreesExpiredSlots() {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		store.put("realm", "alice", new OtpEntry("123456", now, now + 2000));
+		store.put("realm", "bob", new OtpEntry("123456", now, now + TTL));
+		assertEquals(0, store.expireEntries(now));
+		assertEquals(1, store.expireEntries(now + 4000));
+		assertNull(store.get("realm", "alice"));
+		assertNotNull(store.get("realm", "bob"));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	void concurrentFirstPutsOfOneKeyLeaveASingleCode() throws Exception {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int round = 0; round < 500; round++) {
+				String username = "user-" + round;
+				CyclicBarrier barrier = new CyclicBarrier(2);
+				Future<?> first = executor.submit(() -> {
+					barrier.await();
+					return store.put("realm", username, new OtpEntry("111111", now, now + TTL));
+				});
+				Future<?> second = executor.submit(() -> {
+					barrier.await();
+					return store.put("realm", username, new OtpEntry("222222", now, now + 2 * TTL));
+				});
+				first.get();
+				second.get();
+
+				// both puts may have claimed a slot, the duplicate must not surface once the code is used
+				String code = store.get("realm", username).getCode();
+				assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", username, code, now, 3));
+				assertNull(store.get("realm", username), "round " + round);
+				assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", username, "111111", now, 3));
+				assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", username, "222222", now, 3));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	void concurrentRequestsConsumeACodeOnce() throws Exception {
+		OffHeapOtpStore store = new OffHeapOtpStore(1024);
+		int threads = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (int round = 0; round < 200; round++) {
+				store.put("realm", "alice", new OtpEntry(code(round), now, now + TTL));
+				CyclicBarrier barrier = new CyclicBarrier(threads);
+				String code = code(round);
+				List<Future<OtpVerification>> results = new ArrayList<>();
+				for (int t = 0; t < threads; t++) {
+					results.add(executor.submit(() -> {
+						barrier.await();
+						return store.verifyAndConsume("realm", "alice", code, now, 0);
+					}));
+				}
+				int valid = 0;
+				for (Future<OtpVerification> result : results) {
+					OtpVerification verification = result.get();
+					if (verification == OtpVerification.VALID) {
+						valid++;
+					} else {
+						assertEquals(OtpVerification.NOT_FOUND, verification);
+					}
+				}
+				assertEquals(1, valid, "round " + round);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Writers of distinct keys race for the same slots, next to writers of expired codes and the reaper. A writer
+	 * claiming a slot written by another after its window scan would overwrite that key's code.
+	 */
+	@Test
+	void concurrentWritersNeverOverwriteAnotherKeysCode() throws Exception {
+		OffHeapOtpStore store = new OffHeapOtpStore(OffHeapOtpStore.WINDOW);
+		int writers = OffHeapOtpStore.WINDOW / 2;
+		AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+		List<Future<?>> futures = new ArrayList<>();
+		try {
+			for (int t = 0; t < writers; t++) {
+				String username = "user-" + t;
+				int base = t * 10_000;
+				futures.add(executor.submit((Callable<Void>) () -> {
+					for (int i = 0; i < 5_000; i++) {
+						String code = code(base + i);
+						assertTrue(store.put("realm", username, new OtpEntry(code, now, now + TTL)), username);
+						assertEquals(code, store.get("realm", username).getCode(), username);
+						switch (i % 3) {
+							case 0 -> store.remove("realm", username);
+							case 1 -> {
+								assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", username, "x", now, 0), username);
+								assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", username, code, now, 0), username);
+							}
+							default -> assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", username, code, now, 0), username);
+						}
+						assertNull(store.get("realm", username), username);
+					}
+					return null;
+				}));
+			}
+			// expired codes of other keys, taken over by the writers or freed by the reaper
+			futures.add(executor.submit(() -> {
+				for (int i = 0; running.get(); i++) {
+					store.put("realm", "stale-" + i % writers, new OtpEntry(code(i), now - TTL, now - 2000));
+				}
+			}));
+			futures.add(executor.submit(() -> {
+				while (running.get()) {
+					store.expireEntries(now);
+				}
+			}));
+			for (int t = 0; t < writers; t++) {
+				futures.get(t).get(60, TimeUnit.SECONDS);
+			}
+			running.set(false);
+			for (Future<?> future : futures) {
+				future.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			running.set(false);
+			executor.shutdownNow();
+		}
+		store.expireEntries(now);
+		assertEquals(0, store.size());
+		assertEquals(0, store.rejections());
+	}
+
+	private static String code(int i) {
+		return String.format("%06d", i % 1_000_000);
+	}
+
+}
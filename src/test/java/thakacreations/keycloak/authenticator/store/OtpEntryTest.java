@@ -0,0 +1,60 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OtpEntryTest {
+
+	@Test
+	void formatsANumericCodeWithLeadingZeros() {
+		OtpEntry entry = new OtpEntry(42, 6, 0, 1_000);
+		assertEquals(42, entry.getCodeDigits());
+		assertEquals(6, entry.getCodeLength());
+		assertEquals("000042", entry.getCode());
+	}
+
+	@Test
+	void matchesANumericCodeByItsDigits() {
+		OtpEntry entry = new OtpEntry(42, 6, 0, 1_000);
+		assertTrue(entry.matches("000042"));
+		assertFalse(entry.matches("42"));
+		assertFalse(entry.matches("0000042"));
+		assertFalse(entry.matches("00004a"));
+		assertFalse(entry.matches(null));
+	}
+
+	@Test
+	void matchesATextCode() {
+		OtpEntry entry = new OtpEntry("12ab56", 0, 1_000);
+		assertEquals(-1, entry.getCodeDigits());
+		assertEquals(6, entry.getCodeLength());
+		assertTrue(entry.matches("12ab56"));
+		assertFalse(entry.matches("123456"));
+	}
+
+	@Test
+	void aFailedAttemptKeepsTheNumericCode() {
+		OtpEntry entry = new OtpEntry(7, 4, 0, 1_000).withFailedAttempt();
+		assertEquals(1, entry.getAttempts());
+		assertEquals(7, entry.getCodeDigits());
+		assertTrue(entry.matches("0007"));
+	}
+
+	@Test
+	void encodesANumericCodeAsText() {
+		OtpEntry entry = OtpEntry.decode(new OtpEntry(7, 4, 100, 1_000).encode());
+		assertEquals("0007", entry.getCode());
+		assertEquals(100, entry.getIssuedTime());
+		assertEquals(1_000, entry.getExpiryTime());
+	}
+
+	@Test
+	void theCompactStoresPackANumericCodeWithoutFormattingIt() {
+		assertEquals(CompactOtpStore.codeBits("000042"), CompactOtpStore.codeBits(new OtpEntry(42, 6, 0, 1_000)));
+		assertEquals(-1, CompactOtpStore.codeBits(new OtpEntry(42, 12, 0, 1_000)));
+	}
+
+}
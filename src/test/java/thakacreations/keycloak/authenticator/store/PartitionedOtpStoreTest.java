@@ -0,0 +1,110 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionedOtpStoreTest {
+
+	private static final long TTL = 300_000;
+
+	private ScheduledExecutorService reaper;
+	private long now;
+
+	@BeforeEach
+	void setUp() {
+		reaper = Executors.newSingleThreadScheduledExecutor();
+		now = System.currentTimeMillis();
+	}
+
+	@AfterEach
+	void tearDown() {
+		reaper.shutdownNow();
+	}
+
+	@Test
+	void routesEveryRealmToItsOwnPartition() {
+		PartitionedOtpStore store = new PartitionedOtpStore(0, 0, reaper, 1_000);
+		store.put("realm-a", "alice", new OtpEntry("111111", now, now + TTL));
+		store.put("realm-b", "alice", new OtpEntry("222222", now, now + TTL));
+		assertEquals(2, store.partitionCount());
+		assertEquals(1, store.partition("realm-a").size());
+		assertEquals("111111", store.get("realm-a", "alice").getCode());
+		assertEquals("222222", store.get("realm-b", "alice").getCode());
+
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm-a", "alice", "222222", now, 3));
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm-b", "alice", "222222", now, 3));
+		store.remove("realm-b", "alice");
+		assertEquals("111111", store.get("realm-a", "alice").getCode());
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	void createsNoPartitionForLookups() {
+		PartitionedOtpStore store = new PartitionedOtpStore(0, 0, reaper, 1_000);
+		assertNull(store.get("realm-a", "alice"));
+		assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm-a", "alice", "123456", now, 3));
+		store.remove("realm-a", "alice");
+		assertEquals(0, store.partitionCount());
+	}
+
+	@Test
+	void boundsEveryPartitionOnItsOwn() {
+		PartitionedOtpStore store = new PartitionedOtpStore(2, 0, reaper, 1_000);
+		store.put("realm-a", "alice", new OtpEntry("123456", now, now + TTL));
+		store.put("realm-a", "bob", new OtpEntry("123456", now, now + TTL));
+		store.get("realm-a", "alice");
+		store.get("realm-a", "bob");
+		// realm-a is full of codes in use, realm-b still has room
+		assertFalse(store.put("realm-a", "carol", new OtpEntry("123456", now, now + TTL)));
+		assertTrue(store.put("realm-b", "carol", new OtpEntry("123456", now, now + TTL)));
+		assertTrue(store.put("realm-b", "dave", new OtpEntry("123456", now, now + TTL)));
+		assertEquals(4, store.size());
+	}
+
+	@Test
+	void expiresTheCodesOfOnePartitionOnly() {
+		PartitionedOtpStore store = new PartitionedOtpStore(0, 0, reaper, 60_000);
+		store.put("realm-a", "alice", new OtpEntry("123456", now, now + 1_000));
+		store.put("realm-b", "alice", new OtpEntry("123456", now, now + 1_000));
+		assertEquals(1, store.partition("realm-a").expireEntries(now + 3_000));
+		assertNull(store.get("realm-a", "alice"));
+		assertNotNull(store.get("realm-b", "alice"));
+	}
+
+	@Test
+	void theReaperExpiresTheCodesOfEveryPartition() throws InterruptedException {
+		PartitionedOtpStore store = new PartitionedOtpStore(0, 0, reaper, 50);
+		store.put("realm-a", "alice", new OtpEntry("123456", now, now + 100));
+		store.put("realm-b", "alice", new OtpEntry("123456", now, now + 100));
+		store.put("realm-b", "bob", new OtpEntry("123456", now, now + TTL));
+		// the expiry wheels tick once a second
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (store.size() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(1, store.size());
+		assertNotNull(store.get("realm-b", "bob"));
+	}
+
+	@Test
+	void dropsThePartitionOfARemovedRealm() {
+		PartitionedOtpStore store = new PartitionedOtpStore(0, 0, reaper, 1_000);
+		store.put("realm-a", "alice", new OtpEntry("123456", now, now + TTL));
+		store.put("realm-b", "alice", new OtpEntry("123456", now, now + TTL));
+		store.dropPartition("realm-a");
+		assertNull(store.get("realm-a", "alice"));
+		assertNotNull(store.get("realm-b", "alice"));
+		assertEquals(1, store.partitionCount());
+	}
+
+}
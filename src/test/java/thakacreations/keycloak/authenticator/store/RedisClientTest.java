@@ -0,0 +1,117 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisClientTest {
+
+	private RespStubServer server;
+	private RedisClient client;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		server = new RespStubServer();
+		client = new RedisClient("localhost", server.port(), null, 0, 2000, 4);
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	void readsSimpleAndBulkStrings() throws IOException {
+		assertEquals("OK", client.execute("SET", "key", "value"));
+		assertEquals("value", client.execute("GET", "key"));
+	}
+
+	@Test
+	void readsEmptyAndMultiByteBulkStrings() throws IOException {
+		client.execute("SET", "empty", "");
+		client.execute("SET", "umlaut", "Grüße");
+		assertEquals("", client.execute("GET", "empty"));
+		assertEquals("Grüße", client.execute("GET", "umlaut"));
+	}
+
+	@Test
+	void readsNilAsNull() throws IOException {
+		assertNull(client.execute("GET", "missing"));
+	}
+
+	@Test
+	void readsIntegers() throws IOException {
+		client.execute("SET", "key", "value");
+		assertEquals(1L, client.execute("DEL", "key"));
+		assertEquals(0L, client.execute("DEL", "key"));
+	}
+
+	@Test
+	void throwsErrorRepliesAndKeepsTheConnection() throws IOException {
+		RedisClient.RedisException e = assertThrows(RedisClient.RedisException.class, () -> client.execute("NOPE"));
+		assertTrue(e.getMessage().startsWith("ERR unknown command"));
+		assertNull(client.execute("GET", "key"));
+		assertEquals(1, server.connections());
+	}
+
+	@Test
+	void authenticatesAndSelectsTheDatabaseOnConnect() throws IOException {
+		try (RedisClient authenticated = new RedisClient("localhost", server.port(), "secret", 2, 2000, 4)) {
+			authenticated.execute("GET", "key");
+		}
+		assertEquals(List.of("AUTH", "secret"), server.commands.get(0));
+		assertEquals(List.of("SELECT", "2"), server.commands.get(1));
+		assertEquals(List.of("GET", "key"), server.commands.get(2));
+	}
+
+	@Test
+	void retriesOnceOnAPooledConnectionClosedByTheServer() throws IOException {
+		client.execute("GET", "key");
+		server.dropNextCommand();
+		assertNull(client.execute("GET", "key"));
+		assertEquals(2, server.connections());
+	}
+
+	@Test
+	void failsWhenTheNewConnectionBreaksToo() throws IOException {
+		client.execute("GET", "key");
+		server.dropNextCommand();
+		server.dropNextCommand();
+		assertThrows(EOFException.class, () -> client.execute("GET", "key"));
+		assertNull(client.execute("GET", "key"));
+		assertEquals(3, server.connections());
+	}
+
+	@Test
+	void dropsTheConnectionOnAnUnparsableReply() throws IOException {
+		server.replyRaw(":not-a-number\r\n");
+		assertThrows(NumberFormatException.class, () -> client.execute("DEL", "key"));
+		assertNull(client.execute("GET", "key"));
+		assertEquals(2, server.connections());
+	}
+
+	@Test
+	void rejectsUnsupportedReplyTypes() {
+		server.replyRaw("*0\r\n");
+		IOException e = assertThrows(IOException.class, () -> client.execute("GET", "key"));
+		assertTrue(e.getMessage().contains("Unsupported"));
+	}
+
+	@Test
+	void rejectsTruncatedBulkStrings() {
+		server.replyRaw("$10\r\nshort");
+		server.dropNextCommand();
+		assertThrows(IOException.class, () -> client.execute("GET", "key"));
+	}
+
+}
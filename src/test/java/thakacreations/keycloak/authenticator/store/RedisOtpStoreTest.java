@@ -0,0 +1,121 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisOtpStoreTest {
+
+	private static final long TTL = 300_000;
+
+	private RespStubServer server;
+	private RedisClient client;
+	private RedisOtpStore store;
+	private long now;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		server = new RespStubServer();
+		client = new RedisClient("localhost", server.port(), null, 0, 2000, 4);
+		store = new RedisOtpStore(client, "otp:");
+		now = System.currentTimeMillis();
+	}
+
+	@AfterEach
+	void tearDown() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	void putGetAndRemove() {
+		assertTrue(store.put("realm", "alice", new OtpEntry("123456", now, now + TTL)));
+		OtpEntry entry = store.get("realm", "alice");
+		assertEquals("123456", entry.getCode());
+		assertEquals(now, entry.getIssuedTime());
+		assertEquals(now + TTL, entry.getExpiryTime());
+		store.remove("realm", "alice");
+		assertNull(store.get("realm", "alice"));
+	}
+
+	@Test
+	void validCodeIsConsumed() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+		assertNull(store.get("realm", "alice"));
+		assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+	}
+
+	@Test
+	void wrongCodeCountsAnAttemptAndKeepsTheExpiry() throws IOException {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 3));
+		OtpEntry entry = store.get("realm", "alice");
+		assertEquals(1, entry.getAttempts());
+		assertEquals(now, entry.getIssuedTime());
+		assertTrue((Long) client.execute("PTTL", "otp:realm:alice") > 0);
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+	}
+
+	@Test
+	void codeIsLockedAfterMaxAttempts() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(OtpVerification.LOCKED, store.verifyAndConsume("realm", "alice", "000000", now, 2));
+		assertEquals(OtpVerification.LOCKED, store.verifyAndConsume("realm", "alice", "123456", now, 2));
+		assertEquals(2, store.get("realm", "alice").getAttempts());
+	}
+
+	@Test
+	void noLimitWithZeroMaxAttempts() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		for (int i = 0; i < 10; i++) {
+			assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 0));
+		}
+		assertEquals(OtpVerification.VALID, store.verifyAndConsume("realm", "alice", "123456", now, 0));
+	}
+
+	@Test
+	void expiredCodeIsReported() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		assertEquals(OtpVerification.EXPIRED, store.verifyAndConsume("realm", "alice", "123456", now + TTL + 1, 3));
+	}
+
+	@Test
+	void missingCodeIsReported() {
+		assertEquals(OtpVerification.NOT_FOUND, store.verifyAndConsume("realm", "alice", "123456", now, 3));
+	}
+
+	@Test
+	void countsAttemptsOnEntriesWrittenWithoutThem() throws IOException {
+		client.execute("SET", "otp:realm:alice", (now + TTL) + ":" + now + ":123456", "PX", Long.toString(TTL));
+		assertEquals(OtpVerification.INVALID, store.verifyAndConsume("realm", "alice", "000000", now, 3));
+		OtpEntry entry = store.get("realm", "alice");
+		assertEquals(1, entry.getAttempts());
+		assertEquals("123456", entry.getCode());
+	}
+
+	@Test
+	void callsTheScriptByDigestAndFallsBackOnNoScript() {
+		store.put("realm", "alice", new OtpEntry("123456", now, now + TTL));
+		store.verifyAndConsume("realm", "alice", "000000", now, 3);
+		assertEquals(List.of("SET", "EVALSHA", "EVAL"), server.commandNames());
+
+		server.commands.clear();
+		store.verifyAndConsume("realm", "alice", "000000", now, 3);
+		assertEquals(List.of("EVALSHA"), server.commandNames());
+
+		server.flushScripts();
+		server.commands.clear();
+		store.verifyAndConsume("realm", "alice", "123456", now, 3);
+		assertEquals(List.of("EVALSHA", "EVAL"), server.commandNames());
+	}
+
+}
@@ -0,0 +1,349 @@
+package thakacreations.keycloak.authenticator.store;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+import org.luaj.vm2.lib.VarArgFunction;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process server speaking RESP2 with the few Redis commands the OTP store uses, keeping the values in a map.
+ * Scripts run in LuaJ with redis.call bound to the same commands, so the store's scripts are executed for real.
+ */
+class RespStubServer implements Closeable {
+
+	// replies that have no Redis counterpart in this stub, queued by the tests
+	private static final byte[] DROP = new byte[0];
+
+	private final ServerSocket serverSocket;
+	private final Map<String, String> values = new ConcurrentHashMap<>();
+	private final Map<String, Long> expiries = new ConcurrentHashMap<>();
+	private final Map<String, String> scripts = new ConcurrentHashMap<>();
+	private final Queue<byte[]> cannedReplies = new ConcurrentLinkedQueue<>();
+	private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+	private final AtomicInteger connections = new AtomicInteger();
+
+	final List<List<String>> commands = new CopyOnWriteArrayList<>();
+
+	RespStubServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(this::accept, "resp-stub-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	int port() {
+		return serverSocket.getLocalPort();
+	}
+
+	int connections() {
+		return connections.get();
+	}
+
+	/**
+	 * Answers the next command with the given raw bytes instead of executing it.
+	 */
+	void replyRaw(String reply) {
+		cannedReplies.add(reply.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Closes the connection on the next command without answering it.
+	 */
+	void dropNextCommand() {
+		cannedReplies.add(DROP);
+	}
+
+	void flushScripts() {
+		scripts.clear();
+	}
+
+	/**
+	 * Names of the commands received so far, scripts excluded.
+	 */
+	List<String> commandNames() {
+		List<String> names = new ArrayList<>();
+		for (List<String> command : commands) {
+			names.add(command.get(0).toUpperCase());
+		}
+		return names;
+	}
+
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				connections.incrementAndGet();
+				sockets.add(socket);
+				Thread handler = new Thread(() -> serve(socket), "resp-stub-connection");
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try (socket) {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while (true) {
+				List<String> command = readCommand(in);
+				if (command == null) {
+					return;
+				}
+				commands.add(command);
+				byte[] canned = cannedReplies.poll();
+				if (canned == DROP) {
+					return;
+				}
+				if (canned != null) {
+					out.write(canned);
+				} else {
+					writeReply(out, execute(command));
+				}
+				out.flush();
+			}
+		} catch (IOException ignored) {
+		}
+	}
+
+	private Object execute(List<String> command) {
+		String name = command.get(0).toUpperCase();
+		try {
+			return switch (name) {
+				case "AUTH", "SELECT" -> new Status("OK");
+				case "GET" -> get(command.get(1));
+				case "SET" -> set(command);
+				case "DEL" -> del(command.get(1));
+				case "PTTL" -> pttl(command.get(1));
+				case "SCRIPT" -> script(command);
+				case "EVAL" -> {
+					String script = command.get(1);
+					scripts.put(sha1(script), script);
+					yield eval(script, command.subList(2, command.size()));
+				}
+				case "EVALSHA" -> {
+					String script = scripts.get(command.get(1));
+					yield script != null
+						? eval(script, command.subList(2, command.size()))
+						: new Error("NOSCRIPT No matching script. Please use EVAL.");
+				}
+				default -> new Error("ERR unknown command '" + command.get(0) + "'");
+			};
+		} catch (LuaError e) {
+			return new Error("ERR Error running script: " + e.getMessage());
+		}
+	}
+
+	private String get(String key) {
+		Long expiry = expiries.get(key);
+		if (expiry != null && expiry <= System.currentTimeMillis()) {
+			values.remove(key);
+			expiries.remove(key);
+		}
+		return values.get(key);
+	}
+
+	private Status set(List<String> command) {
+		String key = command.get(1);
+		values.put(key, command.get(2));
+		expiries.remove(key);
+		if (command.size() > 4 && command.get(3).equalsIgnoreCase("PX")) {
+			expiries.put(key, System.currentTimeMillis() + Long.parseLong(command.get(4)));
+		}
+		return new Status("OK");
+	}
+
+	private long del(String key) {
+		expiries.remove(key);
+		return values.remove(key) != null ? 1 : 0;
+	}
+
+	private long pttl(String key) {
+		if (get(key) == null) {
+			return -2;
+		}
+		Long expiry = expiries.get(key);
+		return expiry != null ? Math.max(expiry - System.currentTimeMillis(), 1) : -1;
+	}
+
+	private Object script(List<String> command) {
+		String subcommand = command.get(1).toUpperCase();
+		if (subcommand.equals("LOAD")) {
+			String sha = sha1(command.get(2));
+			scripts.put(sha, command.get(2));
+			return sha;
+		}
+		if (subcommand.equals("FLUSH")) {
+			scripts.clear();
+			return new Status("OK");
+		}
+		return new Error("ERR unknown subcommand '" + command.get(1) + "'");
+	}
+
+	private Object eval(String script, List<String> arguments) {
+		int keyCount = Integer.parseInt(arguments.get(0));
+		LuaTable keys = new LuaTable();
+		LuaTable argv = new LuaTable();
+		for (int i = 0; i < keyCount; i++) {
+			keys.set(i + 1, LuaValue.valueOf(arguments.get(1 + i)));
+		}
+		for (int i = 1 + keyCount; i < arguments.size(); i++) {
+			argv.set(i - keyCount, LuaValue.valueOf(arguments.get(i)));
+		}
+		Globals globals = JsePlatform.standardGlobals();
+		globals.set("KEYS", keys);
+		globals.set("ARGV", argv);
+		LuaTable redis = new LuaTable();
+		redis.set("call", new VarArgFunction() {
+			@Override
+			public Varargs invoke(Varargs args) {
+				List<String> command = new ArrayList<>();
+				for (int i = 1; i <= args.narg(); i++) {
+					command.add(args.arg(i).tojstring());
+				}
+				return toLua(execute(command));
+			}
+		});
+		globals.set("redis", redis);
+		return fromLua(globals.load(script, "script").call());
+	}
+
+	private static LuaValue toLua(Object reply) {
+		if (reply == null) {
+			// a nil bulk reply turns into false in Lua
+			return LuaValue.FALSE;
+		}
+		if (reply instanceof Long number) {
+			return LuaValue.valueOf(number.doubleValue());
+		}
+		if (reply instanceof Status status) {
+			LuaTable table = new LuaTable();
+			table.set("ok", status.message());
+			return table;
+		}
+		if (reply instanceof Error error) {
+			throw new LuaError(error.message());
+		}
+		return LuaValue.valueOf((String) reply);
+	}
+
+	private static Object fromLua(LuaValue value) {
+		if (value.isnumber()) {
+			return value.tolong();
+		}
+		if (value.isstring()) {
+			return value.tojstring();
+		}
+		if (value.istable() && value.get("ok").isstring()) {
+			return new Status(value.get("ok").tojstring());
+		}
+		return null;
+	}
+
+	private static List<String> readCommand(InputStream in) throws IOException {
+		int type = in.read();
+		if (type == -1) {
+			return null;
+		}
+		if (type != '*') {
+			throw new IOException("Expected an array, got " + (char) type);
+		}
+		int count = Integer.parseInt(readLine(in));
+		List<String> command = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			if (in.read() != '$') {
+				throw new IOException("Expected a bulk string");
+			}
+			int length = Integer.parseInt(readLine(in));
+			byte[] bytes = in.readNBytes(length + 2);
+			if (bytes.length < length + 2) {
+				throw new EOFException();
+			}
+			command.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+		}
+		return command;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\r') {
+			if (c == -1) {
+				throw new EOFException();
+			}
+			line.append((char) c);
+		}
+		in.read();
+		return line.toString();
+	}
+
+	private static void writeReply(OutputStream out, Object reply) throws IOException {
+		String encoded;
+		if (reply == null) {
+			encoded = "$-1\r\n";
+		} else if (reply instanceof Long number) {
+			encoded = ":" + number + "\r\n";
+		} else if (reply instanceof Status status) {
+			encoded = "+" + status.message() + "\r\n";
+		} else if (reply instanceof Error error) {
+			encoded = "-" + error.message() + "\r\n";
+		} else {
+			byte[] bytes = ((String) reply).getBytes(StandardCharsets.UTF_8);
+			out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.US_ASCII));
+			out.write(bytes);
+			encoded = "\r\n";
+		}
+		out.write(encoded.getBytes(StandardCharsets.UTF_8));
+	}
+
+	static String sha1(String script) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private record Status(String message) {
+	}
+
+	private record Error(String message) {
+	}
+
+}